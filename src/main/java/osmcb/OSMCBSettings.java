@@ -40,6 +40,7 @@ import osmb.utilities.stream.ThrottledInputStream;
 import osmcb.program.ProgramInfo;
 import osmcb.program.ProxyType;
 import osmcb.utilities.OSMCBUtilities;
+import osmcb.utilities.image.OSMPaletteType;
 
 // some sort of singleton implementation
 
@@ -117,6 +118,150 @@ public class OSMCBSettings extends ACSettings
 		return cfgBundleUpdateTime * 24;
 	}
 
+	/**
+	 * KAP images are composed and encoded one tile row (strip) at a time instead of holding the full map image in memory
+	 */
+	@XmlElement(name = "kapStripEncoding")
+	protected boolean cfgKapStripEncoding = true;
+
+	public boolean getKapStripEncoding()
+	{
+		return cfgKapStripEncoding;
+	}
+
+	/**
+	 * the number of threads encoding the tiles and scan lines of KAP images in parallel, 1 encodes serially, 0 uses all available processors
+	 */
+	@XmlElement(name = "kapEncodingThreads")
+	protected int cfgKapEncodingThreads = 0;
+
+	public int getKapEncodingThreads()
+	{
+		return (cfgKapEncodingThreads > 0) ? cfgKapEncodingThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * the size in MB of the cache holding the tiles read or downloaded for the maps of a bundle, counted with their decoded images
+	 */
+	@XmlElement(name = "tileCacheSize")
+	protected int cfgTileCacheSize = 256;
+
+	public int getTileCacheSize()
+	{
+		return cfgTileCacheSize;
+	}
+
+	/**
+	 * an index of the tiles in the tile store answers for known tiles if they are in the tile store without a query to the tile store
+	 */
+	@XmlElement(name = "tilePresenceIndex")
+	protected boolean cfgTilePresenceIndex = true;
+
+	public boolean getTilePresenceIndex()
+	{
+		return cfgTilePresenceIndex;
+	}
+
+	/**
+	 * only tiles not yet in the tile store are downloaded, tiles in the tile store are not checked for updates. This is off by default, since the tile store
+	 * does not tell how old a tile is and updated charts would never reach the bundles. Turn it on for repeated runs over a tile store known to be current.
+	 */
+	@XmlElement(name = "planTileDownloads")
+	protected boolean cfgPlanTileDownloads = false;
+
+	public boolean getPlanTileDownloads()
+	{
+		return cfgPlanTileDownloads;
+	}
+
+	/**
+	 * the number of downloaded tiles waiting to be written to the tile store by the tile writer thread
+	 */
+	@XmlElement(name = "tileWriteQueueSize")
+	protected int cfgTileWriteQueueSize = 1024;
+
+	public int getTileWriteQueueSize()
+	{
+		return cfgTileWriteQueueSize;
+	}
+
+	/**
+	 * the size in MB of the cache holding the encoded runs of tiles for reuse in KAP images, 0 disables the cache
+	 */
+	@XmlElement(name = "kapTileRunCacheSize")
+	protected int cfgKapTileRunCacheSize = 64;
+
+	public int getKapTileRunCacheSize()
+	{
+		return cfgKapTileRunCacheSize;
+	}
+
+	/**
+	 * the palette used for KAP images, ADAPTIVE or WU
+	 */
+	@XmlElement(name = "kapPalette")
+	protected OSMPaletteType cfgKapPalette = OSMPaletteType.ADAPTIVE;
+
+	public OSMPaletteType getKapPalette()
+	{
+		return cfgKapPalette;
+	}
+
+	/**
+	 * the minimum number of pixels sampled for the palette of large KAP images, maps with more than four times as many pixels are sampled, 0 counts all pixels
+	 */
+	@XmlElement(name = "kapPaletteSampleSize")
+	protected long cfgKapPaletteSampleSize = 4L << 20;
+
+	public long getKapPaletteSampleSize()
+	{
+		return cfgKapPaletteSampleSize;
+	}
+
+	/**
+	 * the color histograms of tiles are stored in the tile store directory and KAP palettes are built from them instead of counting the pixels of the map
+	 */
+	@XmlElement(name = "kapTileHistograms")
+	protected boolean cfgKapTileHistograms = true;
+
+	public boolean getKapTileHistograms()
+	{
+		return cfgKapTileHistograms;
+	}
+
+	/**
+	 * all maps of a layer share one palette built from the tiles of the whole layer, instead of one palette per map
+	 */
+	@XmlElement(name = "kapLayerPalette")
+	protected boolean cfgKapLayerPalette = false;
+
+	public boolean getKapLayerPalette()
+	{
+		return cfgKapLayerPalette;
+	}
+
+	/**
+	 * maps whose tiles are all indexed png images with together up to 127 colors get the union of the tile palettes, no quantization is needed then
+	 */
+	@XmlElement(name = "kapIndexedTiles")
+	protected boolean cfgKapIndexedTiles = true;
+
+	public boolean getKapIndexedTiles()
+	{
+		return cfgKapIndexedTiles;
+	}
+
+	/**
+	 * maps whose tiles and creation parameters did not change since the previous bundle are taken from that bundle instead of being created again
+	 */
+	@XmlElement(name = "incrementalBundleUpdate")
+	protected boolean cfgIncrementalBundleUpdate = true;
+
+	public boolean getIncrementalBundleUpdate()
+	{
+		return cfgIncrementalBundleUpdate;
+	}
+
 	/**
 	 * constructor should provide default values for every element
 	 */
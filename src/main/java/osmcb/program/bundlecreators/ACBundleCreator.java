@@ -24,7 +24,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -90,9 +92,11 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 	// protected static final String STR_JSONFMT = "yyyy-MM-ddTHH:mm:00:000";
 	protected static final String STR_JSONFMT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
 
-	protected static MemoryTileCache sTC = new MemoryTileCache();
+	protected static TileCache sTC = null; // the tiles of the maps, see getTileImageCache()
+	protected static MemoryTileCache sLoaderTC = new LoaderTileCache(); // used by the TileLoader only, see LoaderTileCache
 	// protected static ACTileStore sTS = ACTileStore.getInstance();
 	protected static SQLiteDbTileStore sNTS = null; // the 'new' SQLite tile store
+	protected static TileWriteQueue sTWQ = null; // writes the downloaded tiles to sNTS, see getTileWriteQueue()
 
 	protected static AtomicInteger sCompletedMaps = new AtomicInteger(0);
 	protected static AtomicInteger sScheduledTiles = new AtomicInteger(0);
@@ -134,6 +138,7 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 	// protected BundleOutputFormat bundleOutputFormat = null;
 	// protected IfTileP0rovider mapDlTileProvider = null;
 	protected File mOutputDir = null;
+	protected Path mPrevBundleDir = null; // the directory of the previous bundle with the same base name, if any, handed down to the layer and map creators
 	/**
 	 * way out
 	 */
@@ -301,6 +306,7 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 			Path pOutDir = mOutputDir.toPath();
 			sLog.info("++++ Bundle name='" + mBundle.getBaseName() + "', dir='" + pOutDir.getParent() + "' +++++");
 			TreeSet<DirEntry> tBundles = OSMCBUtilities.listBundles(pOutDir.getParent(), mBundle.getBaseName());
+			mPrevBundleDir = findPreviousBundle(tBundles, pOutDir);
 			if (tBundles.size() > 1)
 			{
 				DirEntry tDE = tBundles.pollFirst();
@@ -368,6 +374,32 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 		}
 	}
 
+	/**
+	 * This finds the most recent bundle other than the one in pOutDir. Maps which did not change can be taken from there.
+	 * 
+	 * @param tBundles
+	 *          All bundles with the same base name as listed by {@link OSMCBUtilities#listBundles(Path, String)}.
+	 * @param pOutDir
+	 *          The directory of the bundle under construction.
+	 * @return The directory of the previous bundle or null.
+	 */
+	protected Path findPreviousBundle(TreeSet<DirEntry> tBundles, Path pOutDir)
+	{
+		if (!OSMCBSettings.getInstance().getIncrementalBundleUpdate())
+			return null;
+		DirEntry tPrev = null;
+		for (DirEntry tDE : tBundles)
+		{
+			Path tDir = pOutDir.getParent().resolve(tDE.GetPathStr());
+			if (!tDir.equals(pOutDir) && Files.isDirectory(tDir) && ((tPrev == null) || (tDE.GetDate().compareTo(tPrev.GetDate()) > 0)))
+				tPrev = tDE;
+		}
+		if (tPrev == null)
+			return null;
+		sLog.debug("previous bundle='" + tPrev.GetPathStr() + "', date=" + tPrev.GetDateStr());
+		return pOutDir.getParent().resolve(tPrev.GetPathStr());
+	}
+
 	/**
 	 * Is called for each layer. No tests are performed since the bundle is already declared as ok.
 	 * It actually creates the layer in a three step process.
@@ -416,6 +448,8 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 	protected void runMap()
 	{
 		sLog.trace(OSMBStrs.RStr("START") + " [" + Thread.currentThread().getName() + "], pool=" + mExec.toString());
+		// finishMap() clears mMap
+		IfMap tMap = mMap;
 		try
 		{
 			if (sNTS == null)
@@ -433,6 +467,8 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 				Thread.sleep(1000);
 			}
 			sLog.debug("after shutdown(), completed tasks=" + mExec.getCompletedTaskCount() + ", total jobs=" + mExec.getTaskCount());
+			// wait for the downloaded tiles to be written to the tile store
+			getTileWriteQueue().flush();
 			// create the map from all downloaded tiles
 			createMap();
 			// wait for the map creation to finish
@@ -452,6 +488,9 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 		}
 		finally
 		{
+			// the tiles of a failed map are not kept in preference either
+			if (tMap != null)
+				getTileImageCache().removePendingMap(tMap);
 			jobFinishedWithError(false);
 		}
 	}
@@ -922,6 +961,7 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 			{
 				layerCreator = mBundle.createLayerCreatorInstance();
 				layerCreator.init(mBundle, tLayer, layerOutputDir);
+				layerCreator.mPrevBundleDir = mPrevBundleDir;
 				// IfBundleCreator layerCreator = new ACBundleCreator(mBundle, tLayer, layerOutputDir);
 				mExec.execute(layerCreator);
 				// mExec.execute(this);
@@ -944,6 +984,9 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 		sLog.trace(OSMBStrs.RStr("START"));
 		createInfoFile();
 		sBundleProgress.finishBundle();
+		sLog.info(getTileImageCache().toString());
+		sLog.info(getTileWriteQueue().toString());
+		TilePresenceIndex.saveAll();
 		sLog.info("bundle='" + mBundle.getName() + "' finished");
 	}
 
@@ -960,12 +1003,9 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 		File mapOutputDir = mOutputDir;
 		for (IfMap tMap : mLayer)
 		{
-			ACBundleCreator mapCreator;
 			try
 			{
-				mapCreator = mBundle.createMapCreatorInstance();
-				mapCreator.init(mBundle, mLayer, tMap, mapOutputDir);
-				mExec.execute(mapCreator);
+				mExec.execute(createMapCreator(tMap, mapOutputDir));
 			}
 			catch (InstantiationException | IllegalAccessException e)
 			{
@@ -976,6 +1016,18 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 		sLog.trace("layer='" + mLayer.getName() + "' created");
 	}
 
+	/**
+	 * This creates and initializes the creator of one map of the layer.
+	 */
+	protected ACBundleCreator createMapCreator(IfMap tMap, File mapOutputDir) throws InstantiationException, IllegalAccessException
+	{
+		ACBundleCreator mapCreator = mBundle.createMapCreatorInstance();
+		mapCreator.init(mBundle, mLayer, tMap, mapOutputDir);
+		mapCreator.mPrevBundleDir = mPrevBundleDir;
+		getTileImageCache().addPendingMap(tMap);
+		return mapCreator;
+	}
+
 	public void finishLayer() throws IOException
 	{
 		sLog.trace(OSMBStrs.RStr("START"));
@@ -1030,16 +1082,13 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 			// we download only from online map sources, not from file based map sources
 			if (!(mMap.getMapSource() instanceof IfFileBasedMapSource))
 			{
-				TileLoader tl = new TileLoader(this, sTC);
+				TileLoader tl = new TileLoader(this, sLoaderTC);
 
 				sLog.trace("TileLoader instanciated");
-				for (int tileX = mMap.getMinTileCoordinate().x; tileX <= mMap.getMaxTileCoordinate().x; ++tileX)
+				for (TileAddress tAddr : planMapDownload())
 				{
-					for (int tileY = mMap.getMinTileCoordinate().y; tileY <= mMap.getMaxTileCoordinate().y; ++tileY)
-					{
-						sLog.debug("tiles=" + sScheduledTiles.incrementAndGet() + " of " + mBundle.calculateTilesToLoad());
-						mExec.execute(tl.createTileLoaderJob(mMap.getMapSource(), new TileAddress(tileX, tileY, mMap.getZoom())));
-					}
+					sLog.debug("tiles=" + sScheduledTiles.incrementAndGet() + " of " + mBundle.calculateTilesToLoad());
+					mExec.execute(tl.createTileLoaderJob(mMap.getMapSource(), tAddr));
 				}
 			}
 		}
@@ -1055,6 +1104,73 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 		return true;
 	}
 
+	/**
+	 * This lists the tiles of the map to be downloaded. If download planning is enabled, the tiles already in the tile cache or in the tile store are left out
+	 * and the share of available tiles is logged, see {@link TileDownloadPlan}. Else all tiles of the map are listed.
+	 * 
+	 * @return The addresses of the tiles to be downloaded.
+	 */
+	protected List<TileAddress> planMapDownload()
+	{
+		if (OSMCBSettings.getInstance().getPlanTileDownloads())
+		{
+			TileDownloadPlan tPlan = TileDownloadPlan.create(mMap, (x, y) -> isStoredTile(mMap, x, y));
+			sLog.info(tPlan.toString());
+			return tPlan.getMissing();
+		}
+		List<TileAddress> tAddrs = new ArrayList<>();
+		for (int tileX = mMap.getMinTileCoordinate().x; tileX <= mMap.getMaxTileCoordinate().x; ++tileX)
+			for (int tileY = mMap.getMinTileCoordinate().y; tileY <= mMap.getMaxTileCoordinate().y; ++tileY)
+				tAddrs.add(new TileAddress(tileX, tileY, mMap.getZoom()));
+		return tAddrs;
+	}
+
+	/**
+	 * This checks a tile for the download plan. A tile in the tile cache is taken as available, it may still wait in the tile write queue. The tile store is
+	 * queried only for tiles not known to the presence index. A tile known as absent is planned for download without a query, this is the only place where
+	 * absent tiles are trusted.
+	 * 
+	 * @return true if the tile is in the tile cache or with image data in the tile store.
+	 */
+	protected boolean isStoredTile(IfMap tMap, int x, int y)
+	{
+		TileAddress tAddr = new TileAddress(x, y, tMap.getZoom());
+		if (getTileImageCache().peekTile(tMap.getMapSource(), tAddr) != null)
+			return true;
+		TilePresenceIndex tIndex = getPresenceIndex(tMap.getMapSource(), tAddr.getZoom());
+		int nState = (tIndex != null) ? tIndex.getState(x, y) : TilePresenceIndex.UNKNOWN;
+		if (nState != TilePresenceIndex.UNKNOWN)
+			return nState == TilePresenceIndex.PRESENT;
+		Tile tile = getStoreTile(tMap, tAddr);
+		return (tile != null) && (tile.getImageData() != null);
+	}
+
+	/**
+	 * This gets a tile from the tile store. The store is always queried, even for tiles known as absent, since tiles may have been put into the store by
+	 * other programs. The result is recorded in the presence index, so a tile found clears its absent state.
+	 * 
+	 * @return The tile or null, if it is not in the tile store.
+	 */
+	protected Tile getStoreTile(IfMap tMap, TileAddress tAddr)
+	{
+		TilePresenceIndex tIndex = getPresenceIndex(tMap.getMapSource(), tAddr.getZoom());
+		Tile tile = tMap.getMapSource().getNTileStore().getTile(tAddr);
+		if (tIndex != null)
+			tIndex.setPresent(tAddr.getX(), tAddr.getY(), (tile != null) && (tile.getImageData() != null));
+		return tile;
+	}
+
+	/**
+	 * @return The presence index of the tiles of the map source and zoom level in the tile store or null, if the presence index is disabled.
+	 */
+	protected static TilePresenceIndex getPresenceIndex(ACMapSource tSource, int nZoom)
+	{
+		OSMCBSettings tSettings = OSMCBSettings.getInstance();
+		if (!tSettings.getTilePresenceIndex())
+			return null;
+		return TilePresenceIndex.getIndex(tSettings.getTileStoreDirectory(), tSource, nZoom);
+	}
+
 	public void createMap() throws MapCreationException, InterruptedException
 	{
 		sLog.trace(OSMBStrs.RStr("START"));
@@ -1083,14 +1199,14 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 		TileDbEntry tTSE = new TileDbEntry(tile.getXtile(), tile.getYtile(), tile.getZoom(), tile.getImage());
 		try
 		{
-			sNTS.putTileData(tile.getImageData(), tTSE.getTAddr());
+			getTileWriteQueue().putTileData(sNTS, tile.getImageData(), tTSE.getTAddr(), getPresenceIndex(tile.getSource(), tile.getZoom()));
 		}
-		catch (IOException e)
+		catch (InterruptedException e)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			sLog.warn("tile=" + tile + " not written to the tile store, interrupted");
+			Thread.currentThread().interrupt();
 		}
-		sTC.addTile(tile);
+		getTileImageCache().addTile(tile);
 		int nTiles = sDownloadedTiles.incrementAndGet();
 		sLog.debug("tiles=" + nTiles + " of " + mBundle.calculateTilesToLoad());
 		// info at 0.5% steps
@@ -1115,8 +1231,27 @@ public class ACBundleCreator implements Runnable, IfTileLoaderListener
 		sLog.info(tile + " loaded from mtc, size=" + size);
 	}
 
-	public static MemoryTileCache getTileImageCache()
+	/**
+	 * @return The queue writing the downloaded tiles to the tile store. It is created at the first call with the size set in
+	 *         {@link OSMCBSettings#getTileWriteQueueSize()}.
+	 */
+	public static synchronized TileWriteQueue getTileWriteQueue()
 	{
+		if (sTWQ == null)
+			sTWQ = new TileWriteQueue(OSMCBSettings.getInstance().getTileWriteQueueSize());
+		return sTWQ;
+	}
+
+	/**
+	 * @return The cache of the tiles shared by all map threads. It is created at the first call with the size set in {@link OSMCBSettings#getTileCacheSize()}.
+	 */
+	public static synchronized TileCache getTileImageCache()
+	{
+		if (sTC == null)
+		{
+			sTC = new TileCache(OSMCBSettings.getInstance().getTileCacheSize() * 1024L * 1024L);
+			sLog.debug("tile cache created with " + OSMCBSettings.getInstance().getTileCacheSize() + " MB");
+		}
 		return sTC;
 	}
 }
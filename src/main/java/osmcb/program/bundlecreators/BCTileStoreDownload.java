@@ -72,6 +72,8 @@ public class BCTileStoreDownload extends ACBundleCreator
 				Thread.sleep(1000);
 			}
 			sLog.debug("after shutdown(), completed tasks=" + mExec.getCompletedTaskCount() + ", total jobs=" + mExec.getTaskCount());
+			// the map is complete when its tiles are in the tile store
+			getTileWriteQueue().flush();
 		}
 		catch (IOException e)
 		{
@@ -87,6 +89,7 @@ public class BCTileStoreDownload extends ACBundleCreator
 		}
 		finally
 		{
+			getTileImageCache().removePendingMap(mMap);
 			jobFinishedWithError(false);
 		}
 	}
@@ -118,15 +121,12 @@ public class BCTileStoreDownload extends ACBundleCreator
 		{
 			sLog.debug("download tiles=" + tileCount);
 			// sBundleProgress.initMapDownload(mMap);
-			TileLoader tl = new TileLoader(this, sTC);
+			TileLoader tl = new TileLoader(this, sLoaderTC);
 
-			for (int tileX = mMap.getMinTileCoordinate().x; tileX <= mMap.getMaxTileCoordinate().x; ++tileX)
+			for (TileAddress tAddr : planMapDownload())
 			{
-				for (int tileY = mMap.getMinTileCoordinate().y; tileY <= mMap.getMaxTileCoordinate().y; ++tileY)
-				{
-					sLog.debug("tiles=" + sScheduledTiles.incrementAndGet() + " of " + mBundle.calculateTilesToLoad());
-					mExec.execute(tl.createTileLoaderJob(mMap.getMapSource(), new TileAddress(tileX, tileY, mMap.getZoom())));
-				}
+				sLog.debug("tiles=" + sScheduledTiles.incrementAndGet() + " of " + mBundle.calculateTilesToLoad());
+				mExec.execute(tl.createTileLoaderJob(mMap.getMapSource(), tAddr));
 			}
 		}
 		catch (Error e)
@@ -160,6 +160,14 @@ public class BCTileStoreDownload extends ACBundleCreator
 		else
 			sLog.trace("tile=" + tile + " loaded=" + success);
 		// new SQLite tile store
-		sNTS.putTile(tile);
+		try
+		{
+			getTileWriteQueue().putTile(sNTS, tile, getPresenceIndex(tile.getSource(), tile.getZoom()));
+		}
+		catch (InterruptedException e)
+		{
+			sLog.warn("tile=" + tile + " not written to the tile store, interrupted");
+			Thread.currentThread().interrupt();
+		}
 	}
 }
@@ -16,21 +16,24 @@
  ******************************************************************************/
 package osmcb.program.bundlecreators.KAPImages;
 
-import static java.nio.file.StandardOpenOption.CREATE;
-
+import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
 
 import javax.imageio.ImageIO;
 import javax.imageio.stream.ImageOutputStream;
@@ -38,9 +41,11 @@ import javax.imageio.stream.ImageOutputStream;
 import org.apache.log4j.Logger;
 
 import osmb.exceptions.InvalidNameException;
+import osmb.mapsources.ACMapSource;
 import osmb.mapsources.MP2MapSpace;
 import osmb.mapsources.TileAddress;
 import osmb.program.ACApp;
+import osmb.program.map.IfLayer;
 import osmb.program.map.IfMap;
 import osmb.program.tiles.Tile;
 import osmb.program.tiles.Tile.TileState;
@@ -48,14 +53,21 @@ import osmb.utilities.OSMBStrs;
 import osmcb.OSMCBSettings;
 import osmcb.program.bundle.BundleTestException;
 import osmcb.program.bundle.IfBundle;
+import osmcb.program.ProgramInfo;
 import osmcb.program.bundle.MapCreationException;
 import osmcb.program.bundlecreators.ACBundleCreator;
 import osmcb.program.bundlecreators.IfBundleCreatorName;
+import osmcb.program.bundlecreators.MapTileReader;
+import osmcb.program.bundlecreators.TileCache;
+import osmcb.program.bundlecreators.TilePresenceIndex;
 import osmcb.utilities.OSMCBUtilities;
 import osmcb.utilities.image.IfOSMPalette;
 import osmcb.utilities.image.OSMAdaptivePalette;
-import osmcb.utilities.image.OSMCB3AdaptivePalette;
 import osmcb.utilities.image.OSMColor;
+import osmcb.utilities.image.OSMColorHistogram;
+import osmcb.utilities.image.OSMHistogramCounter;
+import osmcb.utilities.image.OSMIndexedPalette;
+import osmcb.utilities.image.OSMPngPalette;
 
 @IfBundleCreatorName(value = "OpenCPN KAP bundle", type = "OpenCPN")
 // @SupportedTIParameters(names = {Name.format, Name.height, Name.width})
@@ -65,6 +77,12 @@ public class BCOpenCPN extends ACBundleCreator
 	protected static final String STR_KAPDAT = "dd/MM/yyyy";
 	protected static final String FILENAME_PATTERN = "t_%d_%d.%s";
 	protected static final String LINEEND = "\r\n";
+	protected static OSMColorHistogram sErrorHistogram = null;
+
+	/**
+	 * The palettes shared by all maps of a layer, see {@link #initializeLayer()}.
+	 */
+	protected static final ConcurrentHashMap<IfLayer, IfOSMPalette> sLayerPalettes = new ConcurrentHashMap<>();
 
 	public BCOpenCPN()
 	{
@@ -107,6 +125,74 @@ public class BCOpenCPN extends ACBundleCreator
 	{
 		createInfoFile();
 		sBundleProgress.finishBundle();
+		sLog.info(getTileImageCache().toString());
+		TilePresenceIndex.saveAll();
+		KAPTileHistograms.closeAll();
+	}
+
+	/**
+	 * If layer palettes are enabled, this builds one palette from the tiles of all maps in the layer. The palette is finished here and only read afterwards, so
+	 * it and its lookup table are shared by all map threads of the layer without locking.
+	 * Tiles not yet in the tile store are skipped. If less than half of the tiles are available, e.g. at the first creation of a bundle, each map gets its own
+	 * palette as usual.
+	 * This is called before the tiles of the layers maps are downloaded, so the palette is built from the tiles already stored, i.e. those of the previous
+	 * run. Colors only found in tiles downloaded or updated afterwards are mapped to their nearest palette color.
+	 */
+	@Override
+	public void initializeLayer() throws IOException, InterruptedException
+	{
+		super.initializeLayer();
+		if (!((OSMCBSettings) ACApp.getApp().getSettings()).getKapLayerPalette())
+			return;
+		long nPixels = 0;
+		for (IfMap tMap : mLayer)
+			nPixels += getPixelCount(tMap);
+		IfOSMPalette tPal = createPalette(nPixels);
+		BufferedImage tScratch = new BufferedImage(MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, BufferedImage.TYPE_INT_ARGB);
+		long nTiles = 0;
+		long nFound = 0;
+		for (IfMap tMap : mLayer)
+		{
+			KAPTileHistograms tStore = getTileHistograms(tMap);
+			try (MapTileReader tReader = openTileReader(tMap, true, true))
+			{
+				for (int nRow = 0; nRow < tReader.getRangeCount(); nRow++)
+				{
+					for (Tile tile : tReader.nextRange())
+					{
+						++nTiles;
+						if (tile != null)
+						{
+							addTileToPalette(tile, getContentHash(tile), tPal, tStore, tScratch);
+							++nFound;
+						}
+					}
+				}
+			}
+		}
+		if (2 * nFound < nTiles)
+		{
+			sLog.info("layer='" + mLayer.getName() + "' palette not shared, tiles available=" + nFound + " of " + nTiles);
+			return;
+		}
+		tPal.finishPalette();
+		sLayerPalettes.put(mLayer, tPal);
+		sLog.info("layer='" + mLayer.getName() + "' palette shared by " + mLayer.getMapCount() + " maps, tiles available=" + nFound + " of " + nTiles);
+	}
+
+	@Override
+	public void finishLayer() throws IOException
+	{
+		sLayerPalettes.remove(mLayer);
+		super.finishLayer();
+	}
+
+	/**
+	 * @return The palette shared by all maps of the layer or null, if each map has its own palette.
+	 */
+	protected IfOSMPalette getLayerPalette()
+	{
+		return (mLayer != null) ? sLayerPalettes.get(mLayer) : null;
 	}
 
 	@Override
@@ -142,10 +228,52 @@ public class BCOpenCPN extends ACBundleCreator
 	{
 		sLog.trace(OSMBStrs.RStr("START"));
 		// the map is stored as a two file ensemble, one bsb file with a description and a kap file with the image data, so all tiles have to be put together
+		Path tOutDir = mOutputDir.toPath();
+		String strKapFile = mMap.getName() + "_1.kap";
+		String strBsbFile = mMap.getName() + ".bsb";
 		try
 		{
-			writeKapFile();
-			writeBsbFile();
+			// the manifest costs a pass over all tiles, it is made only if the next bundle may take unchanged maps from this one
+			KAPMapManifest tMF = OSMCBSettings.getInstance().getIncrementalBundleUpdate() ? createManifest() : null;
+			IfOSMPalette tPal = null;
+			boolean bScanned = false;
+			boolean bReused = false;
+			if (tMF != null)
+			{
+				if (tMF.canReuse(mPrevBundleDir, strKapFile, strBsbFile))
+				{
+					// the map is probably unchanged, so only the tiles are hashed. If it changed after all, the palette is made in a second pass.
+					scanTiles(tMF, false);
+					bReused = tMF.reuse(mPrevBundleDir, tOutDir, strKapFile, strBsbFile);
+				}
+				else
+				{
+					tPal = scanTiles(tMF, true);
+					bScanned = true;
+				}
+			}
+			if (!bReused)
+			{
+				boolean bWritten = false;
+				try
+				{
+					writeKapFile(tPal, bScanned);
+					writeBsbFile();
+					bWritten = true;
+				}
+				finally
+				{
+					if (!bWritten)
+						deleteMapFiles(tOutDir, strKapFile, strBsbFile);
+				}
+			}
+			// the manifest marks the map files as complete, so it is written last
+			if (tMF != null)
+				tMF.write(tOutDir);
+		}
+		catch (InterruptedException | MapCreationException e)
+		{
+			throw e;
 		}
 		catch (Exception e)
 		{
@@ -153,10 +281,144 @@ public class BCOpenCPN extends ACBundleCreator
 		}
 	}
 
-	protected void writeBsbFile()
+	/**
+	 * This deletes the files of a map which could not be completed, so no partial map file is left in the bundle.
+	 */
+	protected void deleteMapFiles(Path tDir, String... strFiles)
+	{
+		for (String strFile : strFiles)
+		{
+			try
+			{
+				Files.deleteIfExists(tDir.resolve(strFile));
+			}
+			catch (IOException e)
+			{
+				sLog.warn("map file='" + tDir.resolve(strFile) + "' not deleted: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * This creates the manifest of the map from all parameters influencing the map files. The content of the tiles is added by
+	 * {@link #scanTiles(KAPMapManifest, boolean)}.
+	 */
+	protected KAPMapManifest createManifest()
+	{
+		OSMCBSettings tSettings = (OSMCBSettings) ACApp.getApp().getSettings();
+		KAPMapManifest tMF = new KAPMapManifest(mMap.getName());
+		tMF.update(getClass().getName());
+		tMF.update(ProgramInfo.getVersion());
+		tMF.update(mMap.getName());
+		tMF.update(mMap.getNumber());
+		tMF.update(mMap.getZoom());
+		tMF.update(tSettings.getKapStripEncoding() ? 1 : 0);
+		tMF.update(tSettings.getKapPalette().name());
+		tMF.update(getPaletteSampleStep());
+		tMF.update(tSettings.getKapTileHistograms() ? 1 : 0);
+		tMF.update(tSettings.getKapIndexedTiles() ? 1 : 0);
+		IfOSMPalette tLayerPal = getLayerPalette();
+		tMF.update((tLayerPal != null) ? tLayerPal.asBSBStr() : "");
+		return tMF;
+	}
+
+	/**
+	 * This is the first pass over the tiles of the map. It adds the content hashes of the tiles, in the order they appear in the map, to the manifest and
+	 * builds the palette of the map, so the tiles are read once for both. The tiles are looked up in the tile cache without promoting them, the tile cache
+	 * counts only the pass encoding the map.
+	 * The palette is the layer palette, if there is one. Else, if indexed tiles are enabled and all tiles are indexed png images with at most 127 colors
+	 * together, it is the union of their palettes. Else, when writing by strips, it is built from the tiles, see
+	 * {@link #addTileToPalette(Tile, long, IfOSMPalette, KAPTileHistograms, BufferedImage)}. Both are collected in the same pass, so the latter is built in
+	 * vain for indexed tiles.
+	 * 
+	 * @param tMF
+	 *          The manifest to be completed, null if no manifest is made.
+	 * @param bPalette
+	 *          false if only the manifest is needed.
+	 * @return The palette or null, if it has to be made from the composed map image.
+	 */
+	protected IfOSMPalette scanTiles(KAPMapManifest tMF, boolean bPalette) throws InterruptedException
+	{
+		OSMCBSettings tSettings = (OSMCBSettings) ACApp.getApp().getSettings();
+		IfOSMPalette tLayerPal = bPalette ? getLayerPalette() : null;
+		boolean bOwnPalette = bPalette && (tLayerPal == null);
+		OSMIndexedPalette tIdxPal = (bOwnPalette && tSettings.getKapIndexedTiles()) ? new OSMIndexedPalette() : null;
+		IfOSMPalette tPal = (bOwnPalette && tSettings.getKapStripEncoding()) ? createPalette() : null;
+		if ((tMF == null) && (tIdxPal == null) && (tPal == null))
+			return tLayerPal;
+		KAPTileHistograms tStore = (tPal != null) ? getTileHistograms(mMap) : null;
+		BufferedImage tScratch = (tPal != null) ? new BufferedImage(MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, BufferedImage.TYPE_INT_ARGB) : null;
+		try (MapTileReader tReader = openTileReader(mMap, true, true))
+		{
+			for (int y = mMap.getYMin(); y <= mMap.getYMax(); y++)
+			{
+				Tile[] tTiles = tReader.nextRange();
+				for (int x = mMap.getXMin(); x <= mMap.getXMax(); x++)
+				{
+					Tile tile = tTiles[x - mMap.getXMin()];
+					if ((tIdxPal != null) && !addIndexedTile(tile, tIdxPal))
+						tIdxPal = null;
+					tile = checkMapTile(tile, x, y);
+					long nHash = getContentHash(tile);
+					if (tMF != null)
+					{
+						tMF.update(x);
+						tMF.update(y);
+						tMF.update(nHash);
+					}
+					if (tPal != null)
+						addTileToPalette(tile, nHash, tPal, tStore, tScratch);
+				}
+			}
+		}
+		if (tIdxPal != null)
+		{
+			tIdxPal.finishPalette();
+			sLog.debug(mMap.getName() + " palette taken from indexed tiles, colors=" + (tIdxPal.getPalColors() - 1));
+			return tIdxPal;
+		}
+		if (tPal != null)
+		{
+			tPal.finishPalette();
+			if (tStore != null)
+				sLog.debug(tStore.toString());
+			return tPal;
+		}
+		return tLayerPal;
+	}
+
+	/**
+	 * This adds the palette of an indexed png tile to the union of the tile palettes.
+	 * 
+	 * @return false if the tile is not available, not an indexed png image or the union exceeds 127 colors.
+	 */
+	protected boolean addIndexedTile(Tile tile, OSMIndexedPalette tIdxPal)
+	{
+		int[] tTilePal = (tile != null) ? OSMPngPalette.readPalette(tile.getImageData()) : null;
+		if (tTilePal == null)
+			return false;
+		if (!tIdxPal.addPalette(tTilePal))
+		{
+			sLog.debug(mMap.getName() + " union of the tile palettes exceeds " + OSMIndexedPalette.MAX_COLORS + " colors");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The content hash of the tiles image data or -1, if it has none.
+	 */
+	protected static long getContentHash(Tile tile)
+	{
+		if (tile instanceof KAPUniformTiles.ErrorTile)
+			return KAPUniformTiles.ERROR_HASH;
+		byte[] tData = tile.getImageData();
+		return (tData != null) ? OSMCBUtilities.contentHash(tData) : -1;
+	}
+
+	protected void writeBsbFile() throws IOException
 	{
 		sLog.trace(OSMBStrs.RStr("START"));
-		File bsbFile = new File(mOutputDir, mMap.getName() + ".bsb");
 		// !
 		// CRR/This electronic chart was produced under the authority of USA-NOAA/NOS.
 		// By using this chart you acknowledge that you have read, understood
@@ -256,12 +518,12 @@ public class BCOpenCPN extends ACBundleCreator
 		// FN=Lxx-Myyyy.KAP
 		// The text header is terminated with a <Control-Z><NUL> sequence (ASCII characters 26 and 0).
 		//
-		FileOutputStream bsbFileStream = null;
+		OutputStream bsbFileStream = null;
 
 		try
 		{
 			sLog.trace("Writing bsb file");
-			bsbFileStream = new FileOutputStream(bsbFile);
+			bsbFileStream = openBsbFile();
 
 			OutputStreamWriter bsbWriter = new OutputStreamWriter(bsbFileStream, TEXT_FILE_CHARSET);
 			String strDate = new SimpleDateFormat(STR_KAPDAT).format(new Date());
@@ -284,46 +546,64 @@ public class BCOpenCPN extends ACBundleCreator
 			// bsbWriter.write("IFM/7\r\n");
 			bsbWriter.flush();
 		}
-		catch (FileNotFoundException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch (IOException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
 		finally
 		{
 			OSMCBUtilities.closeStream(bsbFileStream);
 		}
 	}
 
-	protected void writeKapFile() throws IOException
+	/**
+	 * This opens the bsb-file of the map. Bundle formats which do not write plain files override this.
+	 */
+	protected OutputStream openBsbFile() throws IOException
 	{
-		sLog.trace(OSMBStrs.RStr("START"));
-		OutputStream mFS = null;
+		return new FileOutputStream(new File(mOutputDir, mMap.getName() + ".bsb"));
+	}
 
-		Path mapFile = Files.createFile(mOutputDir.toPath().resolve(mMap.getName() + "_1.kap"));
+	/**
+	 * This opens the kap-file of the map. Bundle formats which do not write plain files override this.
+	 */
+	protected KAPFileWriter openKapFile() throws IOException
+	{
+		return KAPFileWriter.create(Files.createFile(mOutputDir.toPath().resolve(mMap.getName() + "_1.kap")));
+	}
+
+	protected void writeKapFile() throws IOException, InterruptedException, MapCreationException
+	{
+		writeKapFile(null, false);
+	}
+
+	/**
+	 * @param tPal
+	 *          The palette made by {@link #scanTiles(KAPMapManifest, boolean)}.
+	 * @param bScanned
+	 *          true if the tiles have been scanned for the palette already. If tPal is null then, the palette is made from the composed map image.
+	 */
+	protected void writeKapFile(IfOSMPalette tPal, boolean bScanned) throws IOException, InterruptedException, MapCreationException
+	{
+		sLog.trace(OSMBStrs.RStr("START"));
+		if (((OSMCBSettings) ACApp.getApp().getSettings()).getKapStripEncoding())
+		{
+			writeKapFileByStrips(bScanned ? tPal : scanTiles(null, true));
+			return;
+		}
+		KAPFileWriter tKW = null;
 
 		// The .kap file as used by OpenCPN is a text/binary combined file.
 		// It consists of a BSB-header part and an image part (see misc/BSB-KAP Format.txt)
 		try
 		{
+			if (!bScanned)
+				tPal = scanTiles(null, true);
 			BufferedImage img = createMapFromTiles();
-
-			IfOSMPalette tPal = makePalette(img);
-			mFS = Files.newOutputStream(mapFile, CREATE);
+			if (tPal == null)
+				tPal = makePalette(img);
+			tKW = openKapFile();
 
 			sLog.debug("Writing map file (.kap)");
 
-			ImageOutputStream ios = ImageIO.createImageOutputStream(mFS);
-			writeMapHeader(mFS, tPal);
-
-			long pos = Files.size(mapFile);
-
-			writeMapImage(img, ios, tPal, pos);
+			writeMapHeader(tKW, tPal);
+			writeMapImage(img, tKW, tPal);
 			tPal = null;
 
 			// sLog.debug("Writing test map file (.png)");
@@ -333,19 +613,9 @@ public class BCOpenCPN extends ACBundleCreator
 
 			img = null;
 		}
-		catch (InterruptedException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch (MapCreationException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
 		finally
 		{
-			OSMCBUtilities.closeStream(mFS);
+			OSMCBUtilities.close(tKW);
 		}
 
 		// File testTiff = new File(mapDir, map.getName() + ".tiff");
@@ -355,13 +625,61 @@ public class BCOpenCPN extends ACBundleCreator
 		// ImageIO.write(img, "tiff", testTiff2);
 	}
 
-	protected void writeMapHeader(OutputStream os, IfOSMPalette tPal) throws IOException
+	/**
+	 * This writes the kap-file strip by strip. A strip is one row of tiles, i.e. TECH_TILESIZE scan lines over the full width of the map.
+	 * The strips are composed twice, first to build the palette and then to encode the scan lines. So only one strip is held in memory at any time and the
+	 * memory needed depends on the width of the map, not on its area.
+	 * 
+	 * @param tPal
+	 *          The palette made by {@link #scanTiles(KAPMapManifest, boolean)}.
+	 */
+	protected void writeKapFileByStrips(IfOSMPalette tPal) throws IOException, InterruptedException, MapCreationException
+	{
+		sLog.trace(OSMBStrs.RStr("START"));
+		KAPFileWriter tKW = null;
+		int nStrips = mMap.getYMax() - mMap.getYMin() + 1;
+
+		try
+		{
+
+			tKW = openKapFile();
+
+			sLog.debug("Writing map file (.kap) by strips");
+
+			writeMapHeader(tKW, tPal);
+
+			// second pass: encode the scan lines strip by strip, either from the cached runs of the tiles or from the composed strip
+			int nRunCacheMB = ((OSMCBSettings) ACApp.getApp().getSettings()).getKapTileRunCacheSize();
+			tKW.write(KAPLineEncoder.getDepth(tPal));
+			try (MapTileReader tReader = openTileReader(mMap, true, false))
+			{
+				for (int nStrip = 0; nStrip < nStrips; nStrip++)
+				{
+					Tile[] tTiles = tReader.nextRange();
+					if (nRunCacheMB > 0)
+						writeStripFromTileRuns(nStrip, tTiles, tKW, tPal, KAPTileRunCache.getCache(nRunCacheMB));
+					else
+						writeScanLines(createStripFromTiles(nStrip, tTiles), nStrip * MP2MapSpace.TECH_TILESIZE, tKW, tPal);
+				}
+			}
+			tKW.writeLineIndex();
+			if (nRunCacheMB > 0)
+				sLog.debug(KAPTileRunCache.getCache(nRunCacheMB).toString());
+			sLog.debug("finished writing image file for='" + mMap.getName() + "'");
+		}
+		finally
+		{
+			OSMCBUtilities.close(tKW);
+		}
+	}
+
+	protected void writeMapHeader(KAPFileWriter tKW, IfOSMPalette tPal) throws IOException
 	{
 		sLog.trace(OSMBStrs.RStr("START"));
 		int tileSize = mMap.getTileSize().width;
 		@SuppressWarnings("unused")
 		int zoom = mMap.getZoom();
-		OutputStreamWriter osw = new OutputStreamWriter(os, TEXT_FILE_CHARSET);
+		StringWriter osw = new StringWriter();
 
 		double loMin = mMap.getMinLon();
 		double loMax = mMap.getMaxLon();
@@ -454,15 +772,15 @@ public class BCOpenCPN extends ACBundleCreator
 		osw.write("DTM/0.0,0.0" + LINEEND);
 		osw.write("CPH/0.0" + LINEEND);
 		osw.write("OST/1" + LINEEND);
-		osw.write("IFM/7" + LINEEND);
+		osw.write("IFM/" + KAPLineEncoder.getDepth(tPal) + LINEEND);
 		// two variants are possible
 		// - we use a fixed colortable and match the pixels against the predefined color (quick and the same look in all charts)
 		// - we create a new colortable for each map by some sophisticated algorithm (technically preferred, currently used)
 		osw.write(tPal.asBSBStr());
-		osw.flush();
+		tKW.writeText(osw.toString(), TEXT_FILE_CHARSET);
 		// write the separator before the image description
-		os.write(0x1A);
-		os.write(0x00);
+		tKW.write(0x1A);
+		tKW.write(0x00);
 		tPal = null;
 	}
 
@@ -498,10 +816,48 @@ public class BCOpenCPN extends ACBundleCreator
 		return strCHF;
 	}
 
+	/**
+	 * This creates an empty palette of the type selected in the settings. Palettes of large maps are built from a sampled histogram.
+	 */
+	protected IfOSMPalette createPalette()
+	{
+		return createPalette(getPixelCount(mMap));
+	}
+
+	/**
+	 * @param nPixels
+	 *          The number of pixels the palette is built from.
+	 */
+	protected IfOSMPalette createPalette(long nPixels)
+	{
+		OSMCBSettings tSettings = (OSMCBSettings) ACApp.getApp().getSettings();
+		IfOSMPalette tPal = tSettings.getKapPalette().createPalette();
+		tPal.setSampleStep(OSMHistogramCounter.getSampleStep(nPixels, tSettings.getKapPaletteSampleSize()));
+		return tPal;
+	}
+
+	/**
+	 * @return The edge length of the cells sampled for the palette of this map, 1 if all pixels are counted.
+	 */
+	protected int getPaletteSampleStep()
+	{
+		return OSMHistogramCounter.getSampleStep(getPixelCount(mMap), ((OSMCBSettings) ACApp.getApp().getSettings()).getKapPaletteSampleSize());
+	}
+
+	protected static long getPixelCount(IfMap tMap)
+	{
+		return (long) (tMap.getXMax() - tMap.getXMin() + 1) * (tMap.getYMax() - tMap.getYMin() + 1) * MP2MapSpace.TECH_TILESIZE * MP2MapSpace.TECH_TILESIZE;
+	}
+
+	/**
+	 * This creates the palette of the map image. The palette type is selected in the settings, see {@link OSMCBSettings#getKapPalette()}.
+	 */
 	protected IfOSMPalette makePalette(BufferedImage img)
 	{
 		sLog.trace("START");
-		OSMCB3AdaptivePalette tPal = new OSMCB3AdaptivePalette(img);
+		IfOSMPalette tPal = createPalette();
+		tPal.addImage(img);
+		tPal.finishPalette();
 		// OSMFixedHSLPalette tPal = new OSMFixedHSLPalette(img);
 		// sLog.debug("final Palette:" + tPal.toString());
 		return tPal;
@@ -512,124 +868,278 @@ public class BCOpenCPN extends ACBundleCreator
 	 * 
 	 * @param img
 	 *          The maps image.
-	 * @param ios
-	 *          The output stream the data are written to.
+	 * @param tKW
+	 *          The kap-file writer the data are written to.
 	 * @param tPal
 	 *          The palette to be used.
-	 * @param nPos
-	 *          The starting point in the final file, used in the scan line index table.
 	 */
-	protected void writeMapImage(BufferedImage img, ImageOutputStream ios, IfOSMPalette tPal, long nPos)
+	protected void writeMapImage(BufferedImage img, KAPFileWriter tKW, IfOSMPalette tPal) throws IOException
 	{
 		sLog.trace(OSMBStrs.RStr("START"));
-		int nErrCnt = 0;
-		ArrayList<Long> tLIdx = new ArrayList<>(img.getHeight());
-		try
+		// write the bits per color, the smallest depth holding all colors of the palette (7 - meaning we have up to 127 color in the palette)
+		tKW.write(KAPLineEncoder.getDepth(tPal));
+		writeScanLines(img, 0, tKW, tPal);
+		tKW.writeLineIndex();
+		sLog.debug("finished writing image file for='" + mMap.getName() + "'");
+	}
+
+	/**
+	 * This writes the scan lines of an image or of a strip of the map image to the kap-file. The kap-file writer records the offset of each scan line in the
+	 * line index.
+	 * 
+	 * @param img
+	 *          The image or strip to be encoded.
+	 * @param nFirstLine
+	 *          The line number of the first scan line of img in the map image.
+	 * @param tKW
+	 *          The kap-file writer the data are written to.
+	 * @param tPal
+	 *          The palette to be used.
+	 */
+	protected void writeScanLines(BufferedImage img, int nFirstLine, KAPFileWriter tKW, IfOSMPalette tPal) throws IOException
+	{
+		int nThreads = ((OSMCBSettings) ACApp.getApp().getSettings()).getKapEncodingThreads();
+		if (nThreads > 1)
 		{
-			// write the bits per color (currently fixed to 7 - meaning we have up to 127 color in the palette. Unused colors may be omitted)
-			ios.write(7);
+			writeScanLineBands(img, nFirstLine, tKW, tPal, nThreads);
+			return;
+		}
+		KAPLineEncoder tEnc = new KAPLineEncoder(tPal, img.getWidth());
+		// Write the image line by line. we use rle (see KAPLineEncoder).
+		// The line numbers start with 1 not 0 according to libbsb for V2 and earlier, with 0 according to OpenCPN for V3 and later.
+		// As of 2016-01-22 info by OpenCPN Dave aka bdbcat OpenCPN expects index 0 as the starting line.
+		for (int nY = 0; nY < img.getHeight(); nY++)
+		{
+			tKW.startLine();
+			int nLen = tEnc.encodeLine(img, nY, nFirstLine + nY);
+			tKW.write(tEnc.getBuffer(), 0, nLen);
+		}
+		if (tEnc.getErrors() > 0)
+			sLog.error(mMap.getName() + " lines " + nFirstLine + "-" + (nFirstLine + img.getHeight() - 1) + ", palette index errors=" + tEnc.getErrors());
+	}
 
-			// Write the image pixel by pixel. we use rle (see ...).
-			// The line numbers start with 1 not 0 according to libbsb for V2 and earlier, with 0 according to OpenCPN for V3 and later.
-			// As of 2016-01-22 info by OpenCPN Dave aka bdbcat OpenCPN expects index 0 as the starting line.
-			// for (int nY = 1; nY <= img.getHeight(); nY++)
-			for (int nY = 0; nY < img.getHeight(); nY++)
-			{
-				// write the line index, we get the offset of the first scan line in the file from the outside by file.size() after writeMapHeader()
-				// know no way to ask ios about that
-				tLIdx.add(ios.getStreamPosition() + nPos);
-				if (nY > 0x1FFFFF)
-				{
-					ios.write(((nY >> 21) & 0x7F) | 0x80);
-				}
-				if (nY > 0x3FFF)
-				{
-					ios.write(((nY >> 14) & 0x7F) | 0x80);
-				}
-				if (nY > 0x7F)
-				{
-					ios.write(((nY >> 7) & 0x7F) | 0x80);
-				}
-				ios.write((nY) & 0x7F);
-				// now look for encodable runs
-				for (int nX = 0; nX < img.getWidth(); nX++)
-				{
-					int nCnt = 1;
-					// int nPalIdx = tPal.getPID(new OSMColor(img.getRGB(nX, nY - 1)));
-					int nPalIdx = tPal.getPIdx(new OSMColor(img.getRGB(nX, nY)));
-
-					// should compare the mapped colors. The current pixel and the next one.
-					// while ((nX < img.getWidth() - 1) && (img.getRGB(nX + 1, nY - 1) == tCol.getRGB()))
-					// while ((nX < img.getWidth() - 1) && (tPal.getPID(new OSMColor(img.getRGB(nX + 1, nY - 1))) == nPalIdx))
-					while ((nX < img.getWidth() - 1) && (tPal.getPIdx(new OSMColor(img.getRGB(nX + 1, nY))) == nPalIdx))
-					{
-						nCnt++;
-						nX++;
-					}
+	/**
+	 * This adds the colors of one tile to the palette. Uniform tiles are added with one call. Error tiles are added by the histogram of the error image, which
+	 * is counted only once. The others are added by their stored histogram if tile histograms are enabled, else they are composed and counted.
+	 * 
+	 * @param nHash
+	 *          The content hash of the tile, see {@link #getContentHash(Tile)}.
+	 * @param tStore
+	 *          The store of the tile histograms, null if tile histograms are disabled.
+	 * @param tScratch
+	 *          A TECH_TILESIZE square TYPE_INT_ARGB image used to compose the tiles.
+	 */
+	protected void addTileToPalette(Tile tile, long nHash, IfOSMPalette tPal, KAPTileHistograms tStore, BufferedImage tScratch)
+	{
+		Integer nUniform = getUniformColor(tile);
+		if (nUniform != null)
+			tPal.put(new OSMColor(nUniform), MP2MapSpace.TECH_TILESIZE * MP2MapSpace.TECH_TILESIZE);
+		else if (tile instanceof KAPUniformTiles.ErrorTile)
+			tPal.addHistogram(getErrorHistogram(tScratch));
+		else if ((tStore != null) && (tile.getImageData() != null))
+			tPal.addHistogram(getTileHistogram(tile, nHash, tStore, tScratch));
+		else
+		{
+			composeTile(tile, tScratch);
+			tPal.addImage(tScratch);
+		}
+	}
 
-					if (nPalIdx > 127)
-					{
-						// sLog.error(mMap.getName() + " [" + nX + "|" + (nY - 1) + "], (" + new OSMColor(img.getRGB(nX, nY - 1)).toStringRGB() + "), " + nCnt
-						sLog.error(mMap.getName() + " [" + nX + "|" + (nY) + "], (" + new OSMColor(img.getRGB(nX, nY)).toStringRGB() + "), " + nCnt
-						    + ", palette index wrong=" + nPalIdx + ", used=" + (nPalIdx & 0x7F) + ", errors=" + nErrCnt);
-						++nErrCnt;
-					}
-					if ((false) && (nPalIdx == 0))
-					{
-						// sLog.error(mMap.getName() + " [" + nX + "|" + (nY - 1) + "], (" + new OSMColor(img.getRGB(nX, nY - 1)).toStringRGB() + "), " + nCnt
-						sLog.error(mMap.getName() + " [" + nX + "|" + (nY) + "], (" + new OSMColor(img.getRGB(nX, nY)).toStringRGB() + "), " + nCnt
-						    + ", palette index wrong=" + nPalIdx + ", used=" + (1) + ", errors=" + nErrCnt);
-						nPalIdx = 1;
-						++nErrCnt;
-					}
-					// for our 7bit palette the whole first byte is used by the color index, so the count will follow in the next byte -> set bit 7
-					ios.write((nPalIdx & 0x7F) | 0x80);
-					// calculate the run length
-					nCnt--;
-					if (nCnt > 0x1FFFFF)
-					{
-						ios.write(((nCnt >> 21) & 0x7F) | 0x80);
-					}
-					if (nCnt > 0x3FFF)
-					{
-						ios.write(((nCnt >> 14) & 0x7F) | 0x80);
-					}
-					if (nCnt > 0x7F)
-					{
-						ios.write(((nCnt >> 7) & 0x7F) | 0x80);
-					}
-					ios.write((nCnt) & 0x7F);
-				}
-				// write the line end marker
-				ios.write(0);
+	/**
+	 * @return The stored histogram of the tile. If it is not stored yet, the tile is composed and counted and the histogram is stored.
+	 */
+	protected OSMColorHistogram getTileHistogram(Tile tile, long nHash, KAPTileHistograms tStore, BufferedImage tScratch)
+	{
+		OSMColorHistogram tHist = tStore.get(nHash);
+		if (tHist == null)
+		{
+			int[] tPixels = composeTile(tile, tScratch);
+			tHist = new OSMColorHistogram();
+			tHist.addPixels(tPixels, 0, tPixels.length);
+			tStore.put(nHash, tHist);
+		}
+		return tHist;
+	}
+
+	/**
+	 * @return The histogram of the error image. It is counted with the first error tile, all error tiles carry the same image.
+	 */
+	protected OSMColorHistogram getErrorHistogram(BufferedImage tScratch)
+	{
+		synchronized (BCOpenCPN.class)
+		{
+			if (sErrorHistogram == null)
+			{
+				int[] tPixels = composeTile(new KAPUniformTiles.ErrorTile(mMap.getMapSource(), 0, 0, mMap.getZoom()), tScratch);
+				OSMColorHistogram tHist = new OSMColorHistogram();
+				tHist.addPixels(tPixels, 0, tPixels.length);
+				sErrorHistogram = tHist;
 			}
-			// write the image data end marker
-			ios.writeInt(0);
-			// store the start of line index position into the table as the index of the last line ???? This is not neccessary for OpenCPN, but all libbsb based
-			// programs need it.
-			tLIdx.add(ios.getStreamPosition() + nPos);
-
-			// write the line offset index table. we use the tLIdx ArrayList instead of the original image lines to address.
-			// the last entry in the line index is the start of the line index itself.
-			// This can skip line 0, the we get an 'unindexed' entry with 0000 at the start of the line index.
-			for (int nY = 0; nY < tLIdx.size(); nY++)
+			return sErrorHistogram;
+		}
+	}
+
+	/**
+	 * @return The store of the tile histograms of the maps source and zoom level or null, if tile histograms are disabled.
+	 */
+	protected KAPTileHistograms getTileHistograms(IfMap tMap)
+	{
+		OSMCBSettings tSettings = (OSMCBSettings) ACApp.getApp().getSettings();
+		if (!tSettings.getKapTileHistograms())
+			return null;
+		return KAPTileHistograms.getStore(tSettings.getTileStoreDirectory(), tMap.getMapSource(), tMap.getZoom());
+	}
+
+	/**
+	 * This draws the tile into the scratch image exactly as into a strip, so the pixels are the same as seen by the palette.
+	 * 
+	 * @return The pixel data of the scratch image.
+	 */
+	protected int[] composeTile(Tile tile, BufferedImage tScratch)
+	{
+		int[] tPixels = KAPLineEncoder.getPixelData(tScratch);
+		Arrays.fill(tPixels, 0);
+		Graphics2D gc = tScratch.createGraphics();
+		gc.drawImage(tile.getImage(), 0, 0, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, null);
+		gc.dispose();
+		return tPixels;
+	}
+
+	/**
+	 * @return The color of the tile if it consists of one single opaque color and it is not an error tile, else null.
+	 */
+	protected Integer getUniformColor(Tile tile)
+	{
+		if (tile instanceof KAPUniformTiles.ErrorTile)
+			return null;
+		byte[] tData = tile.getImageData();
+		if ((tData == null) || (tData.length > KAPUniformTiles.MAX_ENCODED_SIZE))
+			return null;
+		return KAPUniformTiles.getColor(tile, OSMCBUtilities.contentHash(tData));
+	}
+
+	/**
+	 * This writes the scan lines of one strip by concatenating the runs of its tiles. The runs of each tile are taken from the cache if a tile with the same
+	 * content has already been encoded with this palette, else the tile is encoded and its runs are added to the cache. With a palette made from indexed tiles
+	 * the runs are taken directly from the index raster of the tile.
+	 * With more than one encoding thread the tiles missed by the cache are encoded in parallel and the scan lines are assembled in parallel bands.
+	 * 
+	 * @param nStrip
+	 *          The number of the strip, counted from the top of the map.
+	 * @param tTiles
+	 *          The tiles of the strip as read by a {@link MapTileReader}.
+	 * @param tKW
+	 *          The kap-file writer the data are written to.
+	 * @param tPal
+	 *          The palette to be used.
+	 * @param tCache
+	 *          The tile run cache.
+	 */
+	protected void writeStripFromTileRuns(int nStrip, Tile[] tTiles, KAPFileWriter tKW, IfOSMPalette tPal, KAPTileRunCache tCache) throws IOException
+	{
+		int nThreads = ((OSMCBSettings) ACApp.getApp().getSettings()).getKapEncodingThreads();
+		int y = mMap.getYMin() + nStrip;
+		int nTiles = mMap.getXMax() - mMap.getXMin() + 1;
+		KAPTileRuns[] tRuns = new KAPTileRuns[nTiles];
+		if (nThreads > 1)
+		{
+			List<ForkJoinTask<?>> tTasks = new ArrayList<>(nTiles);
+			for (int nT = 0; nT < nTiles; nT++)
 			{
-				long nIdx = tLIdx.get(nY);
-				ios.write(((int) nIdx & 0xFF000000) >> 24);
-				ios.write(((int) nIdx & 0x00FF0000) >> 16);
-				ios.write(((int) nIdx & 0x0000FF00) >> 8);
-				ios.write(((int) nIdx & 0x000000FF) >> 0);
+				final int nTile = nT;
+				tTasks.add(ForkJoinTask.adapt(() -> {
+					tRuns[nTile] = getTileRuns(checkMapTile(tTiles[nTile], mMap.getXMin() + nTile, y), tPal, tCache, null);
+				}));
 			}
-			// adjusted for 'line index start' entry as last entry in the line index
-			sLog.debug("finished writing line index with " + (tLIdx.size() - 1) + " lines");
-			ios.close();
-			sLog.debug("finished writing image file for='" + mMap.getName() + "'");
+			KAPBandEncoder.runTasks(tTasks, nThreads);
 		}
-		catch (IOException e)
+		else
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			BufferedImage tScratch = new BufferedImage(MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, BufferedImage.TYPE_INT_ARGB);
+			for (int nTile = 0; nTile < nTiles; nTile++)
+				tRuns[nTile] = getTileRuns(checkMapTile(tTiles[nTile], mMap.getXMin() + nTile, y), tPal, tCache, tScratch);
+		}
+
+		int nFirstLine = nStrip * MP2MapSpace.TECH_TILESIZE;
+		KAPBandEncoder.IfRowEncoder tRows = (tEnc, nRow) -> {
+			tEnc.startLine(nFirstLine + nRow);
+			for (KAPTileRuns tTileRuns : tRuns)
+				tTileRuns.addRow(nRow, tEnc);
+			return tEnc.endLine();
+		};
+		if (nThreads > 1)
+		{
+			writeBands(KAPBandEncoder.encodeBands(tRows, nTiles * MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, tPal, nThreads), nFirstLine,
+			    MP2MapSpace.TECH_TILESIZE, tKW);
+			return;
+		}
+		KAPLineEncoder tEnc = new KAPLineEncoder(tPal, nTiles * MP2MapSpace.TECH_TILESIZE);
+		for (int nRow = 0; nRow < MP2MapSpace.TECH_TILESIZE; nRow++)
+		{
+			tKW.startLine();
+			tKW.write(tEnc.getBuffer(), 0, tRows.encodeRow(tEnc, nRow));
 		}
+		if (tEnc.getErrors() > 0)
+			sLog.error(mMap.getName() + " strip " + nStrip + ", palette index errors=" + tEnc.getErrors());
+	}
+
+	/**
+	 * This gets the runs of one tile from the cache or encodes them and adds them to the cache. It may be called concurrently for the tiles of a strip.
+	 * 
+	 * @param tScratch
+	 *          A TECH_TILESIZE square TYPE_INT_ARGB image used to compose the tile, null to create one if needed.
+	 */
+	protected KAPTileRuns getTileRuns(Tile tile, IfOSMPalette tPal, KAPTileRunCache tCache, BufferedImage tScratch)
+	{
+		byte[] tData = tile.getImageData();
+		KAPTileRuns tTileRuns = null;
+		long nHash = getContentHash(tile);
+		if (nHash != -1)
+		{
+			tTileRuns = tCache.get(nHash, tPal);
+			if (tTileRuns != null)
+				return tTileRuns;
+		}
+		Integer nUniform = KAPUniformTiles.getColor(tile, nHash);
+		if (nUniform != null)
+			tTileRuns = KAPTileRuns.createUniform(tPal.getPIdx(nUniform), MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE);
+		else if ((tData != null) && (tPal instanceof OSMIndexedPalette))
+			tTileRuns = KAPTileRuns.createIndexed(tile.getImage(), MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, tPal);
+		if (tTileRuns == null)
+		{
+			if (tScratch == null)
+				tScratch = new BufferedImage(MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, BufferedImage.TYPE_INT_ARGB);
+			int[] tPixels = composeTile(tile, tScratch);
+			if (nHash == -1)
+				nHash = OSMCBUtilities.contentHash(tPixels);
+			tTileRuns = KAPTileRuns.create(tPixels, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, tPal);
+		}
+		tCache.put(nHash, tPal, tTileRuns);
+		return tTileRuns;
+	}
+
+	/**
+	 * This encodes the scan lines in parallel bands and writes the bands in their original order.
+	 */
+	protected void writeScanLineBands(BufferedImage img, int nFirstLine, KAPFileWriter tKW, IfOSMPalette tPal, int nThreads) throws IOException
+	{
+		writeBands(KAPBandEncoder.encodeBands(img, nFirstLine, tPal, nThreads), nFirstLine, img.getHeight(), tKW);
+	}
+
+	/**
+	 * This writes encoded bands in their order. The line offsets of each band are moved to the position where the band starts in the file.
+	 */
+	protected void writeBands(List<KAPBandEncoder> tBands, int nFirstLine, int nLines, KAPFileWriter tKW) throws IOException
+	{
+		int nErrCnt = 0;
+		for (KAPBandEncoder tBand : tBands)
+		{
+			tKW.addLines(tKW.getPosition(), tBand.getLineOffsets());
+			tKW.write(tBand.getData(), 0, tBand.getLength());
+			nErrCnt += tBand.getErrors();
+		}
+		if (nErrCnt > 0)
+			sLog.error(mMap.getName() + " lines " + nFirstLine + "-" + (nFirstLine + nLines - 1) + ", palette index errors=" + nErrCnt);
 	}
 
 	/**
@@ -749,53 +1259,182 @@ public class BCOpenCPN extends ACBundleCreator
 		int tiley = 0;
 
 		ImageIO.setUseCache(false);
-		// byte[] emptyTileData = OSMCBUtilities.createEmptyTileData(mapSource);
-		// String tileType = mapSource.getTileImageType().getFileExt();
-		for (int x = mMap.getXMin(); x <= mMap.getXMax(); x++)
+		try (MapTileReader tReader = openTileReader(mMap, false, false))
 		{
-			tiley = 0;
-			for (int y = mMap.getYMin(); y <= mMap.getYMax(); y++)
+			for (int x = mMap.getXMin(); x <= mMap.getXMax(); x++)
 			{
-				BufferedImage tileImage = null;
-				Tile tile = null;
-				TileAddress tAddr = new TileAddress(x, y, mMap.getZoom());
-				// try to get the tile from the mtc
-				if ((tile = sTC.getTile(mMap.getMapSource(), tAddr)) != null)
+				Tile[] tTiles = tReader.nextRange();
+				tiley = 0;
+				for (int y = mMap.getYMin(); y <= mMap.getYMax(); y++)
 				{
-					if (tile.getTileState() == TileState.TS_LOADING)
-						sLog.warn("tried to load loading tile from mtc" + tile);
-					else
-						tileImage = tile.getImage();
+					drawMapTile(gc, checkMapTile(tTiles[tiley], x, y), tilex * MP2MapSpace.TECH_TILESIZE, tiley * MP2MapSpace.TECH_TILESIZE);
+					tiley++;
 				}
-				if (tileImage == null)
-				{
-					// if the tile is not available in the mtc, get it from the tile store
-					tile = mMap.getMapSource().getNTileStore().getTile(tAddr);
-					if (tile.getTileState() == TileState.TS_LOADING)
-						sLog.warn("tried to load loading tile from tile store" + tile);
-					else
-						tileImage = tile.getImage();
-				}
-				if (tileImage != null)
-				{
-					sLog.trace(String.format("Tile x=%d y=%d ", tilex, tiley));
-					gc.drawImage(tileImage, tilex * MP2MapSpace.TECH_TILESIZE, tiley * MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE,
-					    null);
-				}
-				else
-				{
-					sLog.warn(String.format("Tile x=%d y=%d not found in tile archive - creating error tile", tilex, tiley));
-					tile = new Tile(mMap.getMapSource(), tilex, tiley, mMap.getZoom());
-					tile.setErrorImage();
-					gc.drawImage(tile.getImage(), tilex * MP2MapSpace.TECH_TILESIZE, tiley * MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE,
-					    MP2MapSpace.TECH_TILESIZE, null);
-				}
-				tiley++;
+				tilex++;
 			}
+		}
+		return img;
+	}
+
+	/**
+	 * This creates one strip of the map image. A strip is one row of tiles over the full width of the map.
+	 * 
+	 * @param nStrip
+	 *          The number of the strip, counted from the top of the map.
+	 * @param tTiles
+	 *          The tiles of the strip as read by a {@link MapTileReader}.
+	 * @return The image of the strip with a height of TECH_TILESIZE.
+	 */
+	protected BufferedImage createStripFromTiles(int nStrip, Tile[] tTiles) throws InterruptedException, MapCreationException
+	{
+		sLog.trace(OSMBStrs.RStr("START"));
+		int width = (mMap.getXMax() - mMap.getXMin() + 1) * MP2MapSpace.TECH_TILESIZE;
+		int y = mMap.getYMin() + nStrip;
+		BufferedImage img = new BufferedImage(width, MP2MapSpace.TECH_TILESIZE, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D gc = img.createGraphics();
+		int tilex = 0;
+
+		ImageIO.setUseCache(false);
+		for (int x = mMap.getXMin(); x <= mMap.getXMax(); x++)
+		{
+			drawMapTile(gc, checkMapTile(tTiles[tilex], x, y), tilex * MP2MapSpace.TECH_TILESIZE, 0);
 			tilex++;
 		}
+		gc.dispose();
 		return img;
 	}
 
+	/**
+	 * This draws one tile into the map image. Uniform tiles are filled with their color without decoding them.
+	 * 
+	 * @param gc
+	 *          The graphics context of the map image or strip.
+	 * @param tile
+	 *          The tile.
+	 * @param nPX
+	 *          The x position in the image.
+	 * @param nPY
+	 *          The y position in the image.
+	 */
+	protected void drawMapTile(Graphics2D gc, Tile tile, int nPX, int nPY)
+	{
+		Integer nUniform = getUniformColor(tile);
+		if (nUniform != null)
+		{
+			gc.setColor(new Color(nUniform, true));
+			gc.fillRect(nPX, nPY, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE);
+		}
+		else
+			gc.drawImage(tile.getImage(), nPX, nPY, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, null);
+	}
+
+	/**
+	 * This gets the image of one tile of the map. If the tile is not available an error tile image is returned.
+	 * 
+	 * @param x
+	 *          The tiles x coordinate.
+	 * @param y
+	 *          The tiles y coordinate.
+	 * @return The tiles image.
+	 */
+	protected BufferedImage getMapTileImage(int x, int y)
+	{
+		return getMapTile(x, y).getImage();
+	}
+
+	/**
+	 * This gets one tile of the map. It first tries the memory tile cache, then the tile store. If the tile is not available an error tile is returned.
+	 * 
+	 * @param x
+	 *          The tiles x coordinate.
+	 * @param y
+	 *          The tiles y coordinate.
+	 * @return The tile.
+	 */
+	protected Tile getMapTile(int x, int y)
+	{
+		return checkMapTile(findMapTile(mMap, x, y, false), x, y);
+	}
+
+	/**
+	 * This replaces a tile not available by an error tile.
+	 * 
+	 * @param tile
+	 *          The tile as found by {@link #findMapTile(IfMap, int, int, boolean)}, null if it is not available.
+	 * @param x
+	 *          The tiles x coordinate.
+	 * @param y
+	 *          The tiles y coordinate.
+	 * @return The tile or the error tile.
+	 */
+	protected Tile checkMapTile(Tile tile, int x, int y)
+	{
+		if (tile != null)
+		{
+			sLog.trace(String.format("Tile x=%d y=%d ", x, y));
+		}
+		else
+		{
+			sLog.warn(String.format("Tile x=%d y=%d not found in tile archive - creating error tile", x, y));
+			tile = new KAPUniformTiles.ErrorTile(mMap.getMapSource(), x, y, mMap.getZoom());
+		}
+		return tile;
+	}
+
+	/**
+	 * This gets one tile of a map. It first tries the memory tile cache, then the tile store.
+	 * 
+	 * @param bPeek
+	 *          true to look up the tile cache without promoting the tile and without counting the lookup, see {@link TileCache#peekTile(ACMapSource, TileAddress)}.
+	 * @return The tile or null, if the tile is not available.
+	 */
+	protected Tile findMapTile(IfMap tMap, int x, int y, boolean bPeek)
+	{
+		boolean bAvailable = false;
+		Tile tile = null;
+		TileAddress tAddr = new TileAddress(x, y, tMap.getZoom());
+		// try to get the tile from the mtc
+		TileCache tTC = getTileImageCache();
+		if ((tile = bPeek ? tTC.peekTile(tMap.getMapSource(), tAddr) : tTC.getTile(tMap.getMapSource(), tAddr)) != null)
+		{
+			if (tile.getTileState() == TileState.TS_LOADING)
+				sLog.warn("tried to load loading tile from mtc" + tile);
+			else
+				bAvailable = isTileAvailable(tile);
+		}
+		if (!bAvailable)
+		{
+			// if the tile is not available in the mtc, get it from the tile store
+			tile = getStoreTile(tMap, tAddr);
+			if (tile == null)
+				return null;
+			if (tile.getTileState() == TileState.TS_LOADING)
+				sLog.warn("tried to load loading tile from tile store" + tile);
+			else
+				bAvailable = isTileAvailable(tile);
+		}
+		return bAvailable ? tile : null;
+	}
+
+	/**
+	 * @param bByRows
+	 *          true to read the tiles row by row, as the strips are composed, false to read them column by column.
+	 * @param bPeek
+	 *          true to look up the tiles in the tile cache without promoting them, for the passes preparing the map.
+	 * @return A reader streaming the tiles of the map in the order of the compose loop, see {@link MapTileReader}.
+	 */
+	protected MapTileReader openTileReader(IfMap tMap, boolean bByRows, boolean bPeek)
+	{
+		return new MapTileReader(tMap, bByRows, (x, y) -> findMapTile(tMap, x, y, bPeek));
+	}
+
+	/**
+	 * A tile with encoded image data is taken as available without decoding the image.
+	 */
+	protected boolean isTileAvailable(Tile tile)
+	{
+		return (tile.getImageData() != null) || (tile.getImage() != null);
+	}
+
 	// FileTileWriter deleted from BCOpenCPN/KAP, it is not usable here.
 }
@@ -29,7 +29,6 @@ import osmcb.OSMCBSettings;
 import osmcb.program.bundle.BundleTestException;
 import osmcb.program.bundle.IfBundle;
 import osmcb.program.bundle.MapCreationException;
-import osmcb.program.bundlecreators.ACBundleCreator;
 import osmcb.program.bundlecreators.IfBundleCreatorName;
 import osmcb.utilities.OSMCBUtilities;
 
@@ -112,12 +111,9 @@ public class BCOpenCPN2 extends BCOpenCPN
 		{
 			if ((tMap.getZoom() & 0x1) == 0x0)
 			{
-				ACBundleCreator mapCreator;
 				try
 				{
-					mapCreator = mBundle.createMapCreatorInstance();
-					mapCreator.init(mBundle, mLayer, tMap, mapOutputDir);
-					mExec.execute(mapCreator);
+					mExec.execute(createMapCreator(tMap, mapOutputDir));
 				}
 				catch (InstantiationException | IllegalAccessException e)
 				{
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+import osmcb.utilities.image.IfOSMPalette;
+
+/**
+ * This encodes a horizontal band of scan lines into its own byte buffer. The scan lines of a KAP image are encoded independently and addressed by the line
+ * index, so the bands of an image can be encoded in parallel and concatenated afterwards. The line offsets of each band are relative to the start of the band
+ * and have to be fixed up by the writer.
+ * The rows are encoded by an {@link IfRowEncoder}, either from the pixels of an image or from the cached runs of the tiles of a strip.
+ * All bands share one fork-join pool for all maps encoded concurrently. The palette has to support concurrent calls of mapRow(), which is true for a
+ * frozen palette.
+ */
+public class KAPBandEncoder extends RecursiveAction
+{
+	private static final long serialVersionUID = 1L;
+	protected static Logger sLog = Logger.getLogger(KAPBandEncoder.class);
+
+	/**
+	 * Bands are not made smaller than this number of scan lines.
+	 */
+	protected static final int MIN_BAND_LINES = 16;
+	protected static ForkJoinPool sPool = null;
+
+	/**
+	 * This encodes one row of a band.
+	 */
+	public interface IfRowEncoder
+	{
+		/**
+		 * @param tEnc
+		 *          The encoder of the band.
+		 * @param nRow
+		 *          The row to be encoded.
+		 * @return The number of bytes of the scan line in the buffer of the encoder.
+		 */
+		int encodeRow(KAPLineEncoder tEnc, int nRow);
+	}
+
+	// instance data
+	protected IfRowEncoder mRows = null;
+	protected int mWidth = 0;
+	protected IfOSMPalette mPal = null;
+	protected int mFirstRow = 0;
+	protected int mEndRow = 0;
+	protected byte[] mData = null;
+	protected int mLen = 0;
+	protected int[] mLineOffsets = null;
+	protected int mErrCnt = 0;
+
+	/**
+	 * @param tRows
+	 *          The encoder of the rows.
+	 * @param nWidth
+	 *          The number of pixels per row.
+	 * @param nFirstRow
+	 *          The first row of the band.
+	 * @param nEndRow
+	 *          The row following the last row of the band.
+	 * @param tPal
+	 *          The palette to be used.
+	 */
+	public KAPBandEncoder(IfRowEncoder tRows, int nWidth, int nFirstRow, int nEndRow, IfOSMPalette tPal)
+	{
+		mRows = tRows;
+		mWidth = nWidth;
+		mFirstRow = nFirstRow;
+		mEndRow = nEndRow;
+		mPal = tPal;
+	}
+
+	protected static synchronized ForkJoinPool getPool(int nThreads)
+	{
+		if (sPool == null)
+		{
+			sPool = new ForkJoinPool(nThreads);
+			sLog.debug("KAP encoder pool created with parallelism=" + nThreads);
+		}
+		return sPool;
+	}
+
+	/**
+	 * Splits the image into bands and encodes them on the shared fork-join pool. This returns after all bands have been encoded.
+	 * 
+	 * @param img
+	 *          The image or strip to be encoded.
+	 * @param nFirstLine
+	 *          The line number of the first row of img in the map image.
+	 * @param tPal
+	 *          The palette to be used.
+	 * @param nThreads
+	 *          The parallelism of the encoder pool.
+	 * @return The encoded bands in the order of the image rows.
+	 */
+	public static List<KAPBandEncoder> encodeBands(final BufferedImage img, final int nFirstLine, IfOSMPalette tPal, int nThreads)
+	{
+		return encodeBands((tEnc, nY) -> tEnc.encodeLine(img, nY, nFirstLine + nY), img.getWidth(), img.getHeight(), tPal, nThreads);
+	}
+
+	/**
+	 * Splits the rows into bands and encodes them on the shared fork-join pool. This returns after all bands have been encoded.
+	 * 
+	 * @param tRows
+	 *          The encoder of the rows.
+	 * @param nWidth
+	 *          The number of pixels per row.
+	 * @param nHeight
+	 *          The number of rows.
+	 * @param tPal
+	 *          The palette to be used.
+	 * @param nThreads
+	 *          The parallelism of the encoder pool.
+	 * @return The encoded bands in the order of the rows.
+	 */
+	public static List<KAPBandEncoder> encodeBands(IfRowEncoder tRows, int nWidth, int nHeight, IfOSMPalette tPal, int nThreads)
+	{
+		// use some more bands than threads to even out differently complex parts of the image
+		int nBands = Math.max(1, Math.min(nThreads * 2, nHeight / MIN_BAND_LINES));
+		List<KAPBandEncoder> tBands = new ArrayList<>(nBands);
+		for (int nBand = 0; nBand < nBands; nBand++)
+			tBands.add(new KAPBandEncoder(tRows, nWidth, (int) ((long) nHeight * nBand / nBands), (int) ((long) nHeight * (nBand + 1) / nBands), tPal));
+		runTasks(tBands, nThreads);
+		return tBands;
+	}
+
+	/**
+	 * Runs the tasks on the shared fork-join pool. This returns after all tasks are done.
+	 * 
+	 * @param nThreads
+	 *          The parallelism of the pool, used only when the pool is created.
+	 */
+	public static void runTasks(final List<? extends ForkJoinTask<?>> tTasks, int nThreads)
+	{
+		getPool(nThreads).invoke(new RecursiveAction()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute()
+			{
+				invokeAll(tTasks);
+			}
+		});
+	}
+
+	@Override
+	protected void compute()
+	{
+		KAPLineEncoder tEnc = new KAPLineEncoder(mPal, mWidth);
+		mLineOffsets = new int[mEndRow - mFirstRow];
+		mData = new byte[(mEndRow - mFirstRow) * (mWidth / 8 + 8)];
+		mLen = 0;
+		for (int nY = mFirstRow; nY < mEndRow; nY++)
+		{
+			mLineOffsets[nY - mFirstRow] = mLen;
+			int nLen = mRows.encodeRow(tEnc, nY);
+			if (mLen + nLen > mData.length)
+			{
+				byte[] tData = new byte[Math.max(mData.length * 2, mLen + nLen)];
+				System.arraycopy(mData, 0, tData, 0, mLen);
+				mData = tData;
+			}
+			System.arraycopy(tEnc.getBuffer(), 0, mData, mLen, nLen);
+			mLen += nLen;
+		}
+		mErrCnt = tEnc.getErrors();
+		// the image or the tile runs are not needed any more
+		mRows = null;
+	}
+
+	/**
+	 * @return The encoded scan lines of this band. Only the first getLength() bytes are valid.
+	 */
+	public byte[] getData()
+	{
+		return mData;
+	}
+
+	public int getLength()
+	{
+		return mLen;
+	}
+
+	/**
+	 * @return The offsets of the scan lines relative to the start of the band.
+	 */
+	public int[] getLineOffsets()
+	{
+		return mLineOffsets;
+	}
+
+	public int getErrors()
+	{
+		return mErrCnt;
+	}
+}
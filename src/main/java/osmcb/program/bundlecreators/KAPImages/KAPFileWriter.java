@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This writes a kap-file through one buffered channel. It keeps track of its own position in the file, so no file size has to be queried to find the start
+ * of the raster data, and it collects the scan line index in a long[] which is written with one bulk write at the end of the image.
+ */
+public class KAPFileWriter implements Closeable
+{
+	protected static Logger sLog = Logger.getLogger(KAPFileWriter.class);
+
+	protected static final int BUFFER_SIZE = 1 << 16;
+
+	// instance data
+	protected WritableByteChannel mChannel = null;
+	protected ByteBuffer mBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	/**
+	 * The position in the file, including the bytes still in the buffer.
+	 */
+	protected long mPos = 0;
+	protected long[] mLineIdx = new long[1024];
+	protected int mLines = 0;
+
+	/**
+	 * @param tChannel
+	 *          The channel the kap data are written to. It is closed by close().
+	 */
+	public KAPFileWriter(WritableByteChannel tChannel)
+	{
+		mChannel = tChannel;
+	}
+
+	/**
+	 * Opens a new kap-file for writing.
+	 */
+	public static KAPFileWriter create(Path tPath) throws IOException
+	{
+		return new KAPFileWriter(FileChannel.open(tPath, CREATE, WRITE, TRUNCATE_EXISTING));
+	}
+
+	/**
+	 * @return The current position in the file.
+	 */
+	public long getPosition()
+	{
+		return mPos;
+	}
+
+	public void write(int nByte) throws IOException
+	{
+		if (!mBuf.hasRemaining())
+			flushBuffer();
+		mBuf.put((byte) nByte);
+		++mPos;
+	}
+
+	public void write(byte[] tData, int nOff, int nLen) throws IOException
+	{
+		if (nLen > mBuf.remaining())
+		{
+			flushBuffer();
+			if (nLen > mBuf.capacity())
+			{
+				writeFully(ByteBuffer.wrap(tData, nOff, nLen));
+				mPos += nLen;
+				return;
+			}
+		}
+		mBuf.put(tData, nOff, nLen);
+		mPos += nLen;
+	}
+
+	/**
+	 * Writes a text, e.g. the bsb header, in the given character set.
+	 */
+	public void writeText(String strText, Charset tCharset) throws IOException
+	{
+		byte[] tData = strText.getBytes(tCharset);
+		write(tData, 0, tData.length);
+	}
+
+	/**
+	 * Registers the current position as start of the next scan line in the line index.
+	 */
+	public void startLine()
+	{
+		addLine(mPos);
+	}
+
+	/**
+	 * Registers scan lines already encoded into a buffer, which will be written at position nBase.
+	 * 
+	 * @param nBase
+	 *          The position of the buffer in the file.
+	 * @param tOffsets
+	 *          The offsets of the lines in the buffer.
+	 */
+	public void addLines(long nBase, int[] tOffsets)
+	{
+		for (int nOff : tOffsets)
+			addLine(nBase + nOff);
+	}
+
+	protected void addLine(long nLinePos)
+	{
+		if (mLines == mLineIdx.length)
+		{
+			long[] tIdx = new long[mLineIdx.length * 2];
+			System.arraycopy(mLineIdx, 0, tIdx, 0, mLines);
+			mLineIdx = tIdx;
+		}
+		mLineIdx[mLines++] = nLinePos;
+	}
+
+	/**
+	 * @return The number of scan lines registered in the line index.
+	 */
+	public int getLineCount()
+	{
+		return mLines;
+	}
+
+	/**
+	 * This writes the image data end marker and the line offset index table after the last scan line.
+	 * The start of the line index itself is added as the last entry. This is not neccessary for OpenCPN, but all libbsb based programs need it.
+	 */
+	public void writeLineIndex() throws IOException
+	{
+		// write the image data end marker
+		write(0);
+		write(0);
+		write(0);
+		write(0);
+		addLine(mPos);
+		flushBuffer();
+
+		ByteBuffer tIdx = ByteBuffer.allocate(mLines * 4);
+		for (int nY = 0; nY < mLines; nY++)
+			tIdx.putInt((int) mLineIdx[nY]);
+		tIdx.flip();
+		writeFully(tIdx);
+		mPos += mLines * 4;
+		// adjusted for 'line index start' entry as last entry in the line index
+		sLog.debug("finished writing line index with " + (mLines - 1) + " lines");
+	}
+
+	public void flush() throws IOException
+	{
+		flushBuffer();
+	}
+
+	protected void flushBuffer() throws IOException
+	{
+		mBuf.flip();
+		writeFully(mBuf);
+		mBuf.clear();
+	}
+
+	protected void writeFully(ByteBuffer tBuf) throws IOException
+	{
+		while (tBuf.hasRemaining())
+			mChannel.write(tBuf);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			flushBuffer();
+		}
+		finally
+		{
+			mChannel.close();
+		}
+	}
+}
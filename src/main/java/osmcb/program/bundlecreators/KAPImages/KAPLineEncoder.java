@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+import org.apache.log4j.Logger;
+
+import osmcb.utilities.image.IfOSMPalette;
+
+/**
+ * This encodes the scan lines of a KAP image with the BSB run length encoding.
+ * The bit depth is the smallest one (1..7) holding all indices of the palette. The first byte of a run holds the palette index in its upper bits and the high
+ * bits of the run length in the remaining lower bits, following bytes hold 7 bits of the run length each. Bit 7 is set in all but the last byte of a run.
+ * It works directly on the int[] behind the images raster, so no objects are created per pixel. The palette indices of a line are looked up at once by
+ * {@link IfOSMPalette#mapRow(int[], int, int, byte[])}.
+ * Each line is encoded into an internal buffer, which is reused for the following line.
+ */
+public class KAPLineEncoder
+{
+	protected static Logger sLog = Logger.getLogger(KAPLineEncoder.class);
+
+	// instance data
+	protected IfOSMPalette mPal = null;
+	protected int mDepth = 7;
+	/**
+	 * The number of bits to shift the palette index into the first byte of a run and the largest run length fitting into the remaining bits.
+	 */
+	protected int mShift = 0;
+	protected int mMaxCnt = 0;
+	/**
+	 * The buffer holding the last encoded line. A run takes at most two bytes per pixel, plus line number and end marker.
+	 */
+	protected byte[] mBuf = null;
+	protected int mLen = 0;
+	/**
+	 * The image currently encoded and its pixel data. mData is null if the image is not backed by a plain int[].
+	 */
+	protected BufferedImage mImg = null;
+	protected int[] mData = null;
+	protected int[] mRow = null;
+	/**
+	 * The palette indices of the line currently encoded.
+	 */
+	protected byte[] mIdx = null;
+	protected int mErrCnt = 0;
+	/**
+	 * The pending run while a line is assembled from runs.
+	 */
+	protected int mRunIdx = -1;
+	protected int mRunCnt = 0;
+	protected int mLine = 0;
+
+	public KAPLineEncoder(IfOSMPalette tPal, int nWidth)
+	{
+		mPal = tPal;
+		mDepth = getDepth(tPal);
+		mShift = 7 - mDepth;
+		mMaxCnt = (1 << mShift) - 1;
+		mBuf = new byte[2 * nWidth + 8];
+		mIdx = new byte[nWidth];
+	}
+
+	/**
+	 * @param tPal
+	 *          The final palette.
+	 * @return The smallest bit depth in the range [1..7] which holds all palette indices.
+	 */
+	public static int getDepth(IfOSMPalette tPal)
+	{
+		int nDepth = 1;
+		while ((nDepth < 7) && ((1 << nDepth) < tPal.getPalColors()))
+			++nDepth;
+		return nDepth;
+	}
+
+	/**
+	 * @param img
+	 *          The image.
+	 * @return The int[] backing the images raster or null, if the image does not store one packed int per pixel without offsets.
+	 */
+	public static int[] getPixelData(BufferedImage img)
+	{
+		WritableRaster tRaster = img.getRaster();
+		if ((tRaster.getDataBuffer() instanceof DataBufferInt) && (tRaster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+		    && (tRaster.getParent() == null) && (tRaster.getSampleModelTranslateX() == 0) && (tRaster.getSampleModelTranslateY() == 0)
+		    && (((SinglePixelPackedSampleModel) tRaster.getSampleModel()).getScanlineStride() == img.getWidth())
+		    && ((img.getType() == BufferedImage.TYPE_INT_ARGB) || (img.getType() == BufferedImage.TYPE_INT_RGB)))
+			return ((DataBufferInt) tRaster.getDataBuffer()).getData();
+		return null;
+	}
+
+	/**
+	 * Encodes one scan line of the image.
+	 * 
+	 * @param img
+	 *          The image.
+	 * @param nY
+	 *          The row in the image.
+	 * @param nLine
+	 *          The line number to be written into the scan line.
+	 * @return The number of bytes in the buffer.
+	 */
+	public int encodeLine(BufferedImage img, int nY, int nLine)
+	{
+		int nWidth = img.getWidth();
+		if (img != mImg)
+		{
+			mImg = img;
+			mData = getPixelData(img);
+			if ((mData == null) && ((mRow == null) || (mRow.length < nWidth)))
+				mRow = new int[nWidth];
+		}
+		if (mData != null)
+			return encodeLine(mData, nY * nWidth, nWidth, nLine);
+		img.getRGB(0, nY, nWidth, 1, mRow, 0, nWidth);
+		return encodeLine(mRow, 0, nWidth, nLine);
+	}
+
+	/**
+	 * Encodes one scan line from packed rgb values.
+	 * 
+	 * @param tPixels
+	 *          The pixel data.
+	 * @param nOff
+	 *          The offset of the first pixel of the line in tPixels.
+	 * @param nWidth
+	 *          The number of pixels in the line.
+	 * @param nLine
+	 *          The line number to be written into the scan line.
+	 * @return The number of bytes in the buffer.
+	 */
+	public int encodeLine(int[] tPixels, int nOff, int nWidth, int nLine)
+	{
+		if (mBuf.length < 2 * nWidth + 8)
+			mBuf = new byte[2 * nWidth + 8];
+		if (mIdx.length < nWidth)
+			mIdx = new byte[nWidth];
+		mLen = 0;
+		putVarInt(nLine);
+		mPal.mapRow(tPixels, nOff, nWidth, mIdx);
+		int nX = 0;
+		while (nX < nWidth)
+		{
+			int nStart = nX;
+			int nRunIdx = mIdx[nX++] & 0xFF;
+			// extend the run as long as the pixels map to the same palette index
+			while ((nX < nWidth) && (mIdx[nX] == nRunIdx))
+				++nX;
+			if (nRunIdx > (0x7F >> mShift))
+			{
+				sLog.error("[" + nStart + "|" + nLine + "], " + (nX - nStart) + ", palette index wrong=" + nRunIdx + ", used="
+				    + (nRunIdx & (0x7F >> mShift)) + ", errors=" + mErrCnt);
+				++mErrCnt;
+			}
+			putRun(nRunIdx & (0x7F >> mShift), nX - nStart - 1);
+		}
+		// write the line end marker
+		mBuf[mLen++] = 0;
+		return mLen;
+	}
+
+	/**
+	 * Starts a line to be assembled by addRun().
+	 * 
+	 * @param nLine
+	 *          The line number to be written into the scan line.
+	 */
+	public void startLine(int nLine)
+	{
+		mLen = 0;
+		mLine = nLine;
+		mRunIdx = -1;
+		mRunCnt = 0;
+		putVarInt(nLine);
+	}
+
+	/**
+	 * Appends nCnt pixels of one palette index to the current line. Consecutive runs of the same index are merged.
+	 */
+	public void addRun(int nPalIdx, int nCnt)
+	{
+		if (nPalIdx == mRunIdx)
+			mRunCnt += nCnt;
+		else
+		{
+			flushRun();
+			mRunIdx = nPalIdx;
+			mRunCnt = nCnt;
+		}
+	}
+
+	/**
+	 * Finishes the line started by startLine().
+	 * 
+	 * @return The number of bytes in the buffer.
+	 */
+	public int endLine()
+	{
+		flushRun();
+		// write the line end marker
+		mBuf[mLen++] = 0;
+		return mLen;
+	}
+
+	protected void flushRun()
+	{
+		if (mRunCnt > 0)
+		{
+			if (mRunIdx > (0x7F >> mShift))
+			{
+				sLog.error("line " + mLine + ", " + mRunCnt + ", palette index wrong=" + mRunIdx + ", used=" + (mRunIdx & (0x7F >> mShift)) + ", errors="
+				    + mErrCnt);
+				++mErrCnt;
+			}
+			putRun(mRunIdx & (0x7F >> mShift), mRunCnt - 1);
+		}
+		mRunCnt = 0;
+	}
+
+	/**
+	 * Appends one run.
+	 * 
+	 * @param nPalIdx
+	 *          The palette index.
+	 * @param nCnt
+	 *          The run length - 1.
+	 */
+	protected void putRun(int nPalIdx, int nCnt)
+	{
+		int nPix = nPalIdx << mShift;
+		if (nCnt <= mMaxCnt)
+		{
+			// a single zero byte would be taken as line end marker, so use a continuation byte with a zero count in front of it
+			if ((nPix | nCnt) == 0)
+				mBuf[mLen++] = (byte) 0x80;
+			mBuf[mLen++] = (byte) (nPix | nCnt);
+			return;
+		}
+		// the high bits of the run length go into the first byte, the remaining ones 7 bits per byte
+		int nGroups = 0;
+		int nHigh = nCnt;
+		while (nHigh > mMaxCnt)
+		{
+			nHigh >>= 7;
+			++nGroups;
+		}
+		mBuf[mLen++] = (byte) (nPix | nHigh | 0x80);
+		while (--nGroups >= 0)
+		{
+			int nByte = (nCnt >> (7 * nGroups)) & 0x7F;
+			if (nGroups > 0)
+				nByte |= 0x80;
+			mBuf[mLen++] = (byte) nByte;
+		}
+	}
+
+	/**
+	 * Appends a value in the BSB multi byte format: 7 bits per byte, most significant first, bit 7 set in all but the last byte.
+	 */
+	protected void putVarInt(int nVal)
+	{
+		if (nVal > 0x1FFFFF)
+		{
+			mBuf[mLen++] = (byte) (((nVal >> 21) & 0x7F) | 0x80);
+		}
+		if (nVal > 0x3FFF)
+		{
+			mBuf[mLen++] = (byte) (((nVal >> 14) & 0x7F) | 0x80);
+		}
+		if (nVal > 0x7F)
+		{
+			mBuf[mLen++] = (byte) (((nVal >> 7) & 0x7F) | 0x80);
+		}
+		mBuf[mLen++] = (byte) (nVal & 0x7F);
+	}
+
+	/**
+	 * @return The bit depth used for the runs.
+	 */
+	public int getDepth()
+	{
+		return mDepth;
+	}
+
+	/**
+	 * @return The buffer with the last encoded line. Only the first getLength() bytes are valid.
+	 */
+	public byte[] getBuffer()
+	{
+		return mBuf;
+	}
+
+	/**
+	 * @return The number of bytes of the last encoded line.
+	 */
+	public int getLength()
+	{
+		return mLen;
+	}
+
+	/**
+	 * @return The number of runs with an invalid palette index encountered so far.
+	 */
+	public int getErrors()
+	{
+		return mErrCnt;
+	}
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The manifest of one map describes everything the map files are made of: the content hashes of all tiles in their order, the palette parameters and the
+ * version of the creator. It is stored as a small text file next to the map files.
+ * If a map in the previous bundle has the same manifest, its files are identical to what would be created now, so they are linked or copied instead of
+ * composing, quantizing and encoding the map again.
+ */
+public class KAPMapManifest
+{
+	protected static Logger sLog = Logger.getLogger(KAPMapManifest.class);
+
+	public static final String MANIFEST_EXT = ".manifest";
+	/**
+	 * Has to be increased whenever a change in the creator changes the map files created from the same tiles.
+	 */
+	public static final int CREATOR_VERSION = 3;
+
+	protected String mMapName;
+	protected long mHash = 0xCBF29CE484222325L;
+
+	public KAPMapManifest(String strMapName)
+	{
+		mMapName = strMapName;
+		update(CREATOR_VERSION);
+	}
+
+	public void update(long nValue)
+	{
+		for (int nB = 0; nB < 8; nB++)
+		{
+			mHash ^= (nValue >>> (nB * 8)) & 0xFF;
+			mHash *= 0x100000001B3L;
+		}
+	}
+
+	public void update(String strValue)
+	{
+		for (byte b : strValue.getBytes(StandardCharsets.UTF_8))
+		{
+			mHash ^= b & 0xFF;
+			mHash *= 0x100000001B3L;
+		}
+		update(strValue.length());
+	}
+
+	public long getHash()
+	{
+		return mHash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%016x", mHash);
+	}
+
+	public Path getPath(Path tDir)
+	{
+		return tDir.resolve(mMapName + MANIFEST_EXT);
+	}
+
+	public void write(Path tDir) throws IOException
+	{
+		Files.write(getPath(tDir), (toString() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return true if the manifest of the map in the directory tDir is the same as this one.
+	 */
+	public boolean matches(Path tDir)
+	{
+		Path tFile = getPath(tDir);
+		try
+		{
+			if (Files.isRegularFile(tFile))
+				return new String(Files.readAllBytes(tFile), StandardCharsets.US_ASCII).trim().equals(toString());
+		}
+		catch (IOException e)
+		{
+			sLog.debug("manifest='" + tFile + "' not readable: " + e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * This checks if the previous bundle holds the map with a manifest, before the manifest of this map is complete. It need not be the same manifest.
+	 * 
+	 * @return true if the manifest and all map files exist in the previous bundle.
+	 */
+	public boolean canReuse(Path tPrevDir, String... strFiles)
+	{
+		if ((tPrevDir == null) || !Files.isRegularFile(getPath(tPrevDir)))
+			return false;
+		for (String strFile : strFiles)
+		{
+			if (!Files.isRegularFile(tPrevDir.resolve(strFile)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This takes the map files from the previous bundle, if its manifest matches this one. The files are hard linked, if the file system does not support
+	 * that they are copied.
+	 * 
+	 * @param tPrevDir
+	 *          The directory of the previous bundle.
+	 * @param tOutDir
+	 *          The directory of the bundle under construction.
+	 * @param strFiles
+	 *          The names of the map files.
+	 * @return true if all map files have been taken from the previous bundle.
+	 */
+	public boolean reuse(Path tPrevDir, Path tOutDir, String... strFiles)
+	{
+		if (!canReuse(tPrevDir, strFiles) || !matches(tPrevDir))
+			return false;
+		try
+		{
+			for (String strFile : strFiles)
+			{
+				Path tSrc = tPrevDir.resolve(strFile);
+				Path tDst = tOutDir.resolve(strFile);
+				try
+				{
+					Files.createLink(tDst, tSrc);
+				}
+				catch (UnsupportedOperationException | IOException e)
+				{
+					Files.copy(tSrc, tDst, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			sLog.debug("map='" + mMapName + "' unchanged, files taken from='" + tPrevDir + "'");
+			return true;
+		}
+		catch (IOException e)
+		{
+			sLog.warn("map='" + mMapName + "' could not be taken from='" + tPrevDir + "': " + e.getMessage());
+			for (String strFile : strFiles)
+			{
+				try
+				{
+					Files.deleteIfExists(tOutDir.resolve(strFile));
+				}
+				catch (IOException e1)
+				{
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import osmb.mapsources.ACMapSource;
+import osmcb.utilities.image.OSMColorHistogram;
+
+/**
+ * This stores the color histograms of tiles, keyed by the tiles content hash. The same tiles occur in overlapping maps, in several layers and in each rebuild
+ * of a bundle, so the palette of a map can be built by merging the histograms of its tiles instead of counting the pixels again.
+ * There is one store per map source and zoom level. It is persisted in a sidecar directory of the tile store as one pack file, new histograms are appended
+ * to it. The offsets of all histograms in the pack are read when the store is opened, recently used histograms are also held in memory in their serialized
+ * form, limited by the total number of bytes. A pack grown beyond {@link #MAX_PACK_SIZE}, e.g. by tiles changed over many rebuilds, is dropped and
+ * built anew.
+ */
+public class KAPTileHistograms
+{
+	protected static Logger sLog = Logger.getLogger(KAPTileHistograms.class);
+
+	public static final String DIR_NAME = "histograms";
+	public static final String FILE_EXT = ".hpk";
+	protected static final long MAX_MEMORY = 32L * 1024 * 1024;
+	protected static final long MAX_PACK_SIZE = 256L * 1024 * 1024;
+	/**
+	 * The header of a pack file. It has to be changed whenever the serialized form of the histograms changes.
+	 */
+	private static final int FILE_MAGIC = 0x48504B32; // "HPK2"
+	/**
+	 * Each histogram in the pack is preceded by its hash and its length.
+	 */
+	private static final int RECORD_HEADER = 12;
+
+	private static final Map<String, KAPTileHistograms> sStores = new HashMap<>();
+
+	// instance data
+	protected final Path mFile;
+	protected FileChannel mChannel = null;
+	/**
+	 * The offset of each histogram in the pack, pointing behind the record header.
+	 */
+	protected final HashMap<Long, Long> mIndex = new HashMap<>();
+	protected final HashMap<Long, Integer> mLength = new HashMap<>();
+	protected final LinkedHashMap<Long, byte[]> mMap = new LinkedHashMap<>(1024, 0.75f, true);
+	protected long mBytes = 0;
+	protected long mHits = 0;
+	protected long mLoaded = 0;
+	protected long mMisses = 0;
+
+	/**
+	 * @param tFile
+	 *          The pack file the histograms are persisted in, null keeps them in memory only.
+	 */
+	public KAPTileHistograms(Path tFile)
+	{
+		mFile = tFile;
+	}
+
+	/**
+	 * @param tTileStoreDir
+	 *          The tile store directory, used only when the store is opened. null keeps the histograms in memory only.
+	 * @return The histogram store of the map source and zoom level, shared by all KAP bundle creators. It is opened at the first call.
+	 */
+	public static synchronized KAPTileHistograms getStore(File tTileStoreDir, ACMapSource tSource, int nZoom)
+	{
+		String strKey = tSource.getName().replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + nZoom;
+		KAPTileHistograms tStore = sStores.get(strKey);
+		if (tStore == null)
+		{
+			tStore = new KAPTileHistograms((tTileStoreDir != null) ? tTileStoreDir.toPath().resolve(DIR_NAME).resolve(strKey + FILE_EXT) : null);
+			tStore.open();
+			sStores.put(strKey, tStore);
+		}
+		return tStore;
+	}
+
+	/**
+	 * Closes the pack files of all stores. The stores are opened again at their next use.
+	 */
+	public static synchronized void closeAll()
+	{
+		for (KAPTileHistograms tStore : sStores.values())
+		{
+			sLog.debug(tStore.toString());
+			tStore.close();
+		}
+		sStores.clear();
+	}
+
+	/**
+	 * Opens the pack file and reads the offsets of the histograms in it. A pack which is too large or not readable is started anew.
+	 */
+	protected synchronized void open()
+	{
+		if (mFile == null)
+			return;
+		try
+		{
+			Files.createDirectories(mFile.getParent());
+			if (Files.isRegularFile(mFile) && (Files.size(mFile) > MAX_PACK_SIZE))
+			{
+				sLog.info("tile histograms " + mFile + " exceed " + (MAX_PACK_SIZE >> 20) + " MB, they are built anew");
+				Files.delete(mFile);
+			}
+			mChannel = FileChannel.open(mFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (!readIndex())
+			{
+				mIndex.clear();
+				mLength.clear();
+				mChannel.truncate(0);
+				ByteBuffer tBuf = ByteBuffer.allocate(4).putInt(FILE_MAGIC);
+				tBuf.flip();
+				mChannel.write(tBuf, 0);
+			}
+			sLog.debug("tile histograms " + mFile + " opened, histograms=" + mIndex.size());
+		}
+		catch (IOException e)
+		{
+			sLog.warn("opening tile histograms " + mFile + " failed, they are kept in memory only: " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Reads the record headers of the pack. A record cut off at the end, e.g. by an aborted run, is dropped.
+	 * 
+	 * @return false if the pack is empty or has an unknown format.
+	 */
+	private boolean readIndex() throws IOException
+	{
+		long nSize = mChannel.size();
+		ByteBuffer tBuf = ByteBuffer.allocate(RECORD_HEADER);
+		tBuf.limit(4);
+		if ((nSize < 4) || (mChannel.read(tBuf, 0) < 4) || (tBuf.getInt(0) != FILE_MAGIC))
+			return false;
+		long nPos = 4;
+		while (nPos + RECORD_HEADER <= nSize)
+		{
+			tBuf.clear();
+			while (tBuf.hasRemaining() && (mChannel.read(tBuf, nPos + tBuf.position()) > 0))
+				;
+			long nHash = tBuf.getLong(0);
+			int nLen = tBuf.getInt(8);
+			if ((nLen < 0) || (nPos + RECORD_HEADER + nLen > nSize))
+				break;
+			mIndex.put(nHash, nPos + RECORD_HEADER);
+			mLength.put(nHash, nLen);
+			nPos += RECORD_HEADER + nLen;
+		}
+		if (nPos < nSize)
+			mChannel.truncate(nPos);
+		return true;
+	}
+
+	protected synchronized void close()
+	{
+		if (mChannel == null)
+			return;
+		try
+		{
+			mChannel.close();
+		}
+		catch (IOException e)
+		{
+			sLog.warn("closing tile histograms " + mFile + " failed: " + e.getMessage());
+		}
+		mChannel = null;
+	}
+
+	/**
+	 * @return The histogram of the tile or null, if it has not been stored yet.
+	 */
+	public OSMColorHistogram get(long nHash)
+	{
+		byte[] tData;
+		synchronized (this)
+		{
+			tData = mMap.get(nHash);
+			if (tData != null)
+				++mHits;
+			else if ((mChannel != null) && mIndex.containsKey(nHash))
+				tData = load(nHash);
+			if (tData == null)
+			{
+				++mMisses;
+				return null;
+			}
+		}
+		try
+		{
+			return OSMColorHistogram.read(new DataInputStream(new ByteArrayInputStream(tData)));
+		}
+		catch (IOException e)
+		{
+			sLog.warn("tile histogram " + Long.toHexString(nHash) + " is corrupt: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a histogram from the pack into memory.
+	 */
+	private byte[] load(long nHash)
+	{
+		ByteBuffer tBuf = ByteBuffer.allocate(mLength.get(nHash));
+		long nPos = mIndex.get(nHash);
+		try
+		{
+			while (tBuf.hasRemaining() && (mChannel.read(tBuf, nPos + tBuf.position()) > 0))
+				;
+			if (tBuf.hasRemaining())
+				throw new IOException("unexpected end of file");
+		}
+		catch (IOException e)
+		{
+			sLog.warn("reading tile histogram " + Long.toHexString(nHash) + " from " + mFile + " failed: " + e.getMessage());
+			return null;
+		}
+		++mLoaded;
+		byte[] tData = tBuf.array();
+		add(nHash, tData);
+		return tData;
+	}
+
+	/**
+	 * Stores the histogram of a tile in memory and appends it to the pack.
+	 */
+	public void put(long nHash, OSMColorHistogram tHist)
+	{
+		ByteArrayOutputStream tBuf = new ByteArrayOutputStream(8 * tHist.size() + 4);
+		try
+		{
+			tHist.write(new DataOutputStream(tBuf));
+		}
+		catch (IOException e)
+		{
+			// not thrown by a ByteArrayOutputStream
+		}
+		byte[] tData = tBuf.toByteArray();
+		synchronized (this)
+		{
+			add(nHash, tData);
+			if ((mChannel == null) || mIndex.containsKey(nHash))
+				return;
+			try
+			{
+				long nPos = mChannel.size();
+				ByteBuffer tRecord = ByteBuffer.allocate(RECORD_HEADER + tData.length);
+				tRecord.putLong(nHash).putInt(tData.length).put(tData);
+				tRecord.flip();
+				while (tRecord.hasRemaining())
+					mChannel.write(tRecord, nPos + tRecord.position());
+				mIndex.put(nHash, nPos + RECORD_HEADER);
+				mLength.put(nHash, tData.length);
+			}
+			catch (IOException e)
+			{
+				sLog.warn("writing tile histogram to " + mFile + " failed, it is kept in memory only: " + e.getMessage());
+				close();
+			}
+		}
+	}
+
+	protected void add(long nHash, byte[] tData)
+	{
+		byte[] tOld = mMap.put(nHash, tData);
+		if (tOld != null)
+			mBytes -= tOld.length;
+		mBytes += tData.length;
+		Iterator<byte[]> tIt = mMap.values().iterator();
+		while ((mBytes > MAX_MEMORY) && tIt.hasNext())
+		{
+			mBytes -= tIt.next().length;
+			tIt.remove();
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "tile histograms " + mFile + ": " + mIndex.size() + " stored, " + mMap.size() + " in memory, " + mBytes + " bytes, hits=" + mHits + ", loaded="
+		    + mLoaded + ", misses=" + mMisses;
+	}
+}
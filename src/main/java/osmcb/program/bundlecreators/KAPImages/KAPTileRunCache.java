@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
+
+import osmcb.utilities.image.IfOSMPalette;
+
+/**
+ * This caches the runs of tiles already encoded, keyed by the tiles content hash and the palette used. Sea charts consist mostly of identical tiles, so most
+ * tiles of a map can be encoded by copying the runs of an earlier tile.
+ * The cache is shared by all maps created concurrently and is limited by the total number of runs held. The least recently used tiles are dropped first.
+ */
+public class KAPTileRunCache
+{
+	protected static Logger sLog = Logger.getLogger(KAPTileRunCache.class);
+
+	/**
+	 * Each palette gets its own id while it is in use. The palettes do not override equals(), so the weak map works on their identity.
+	 */
+	private static final Map<IfOSMPalette, Integer> sPaletteIds = new WeakHashMap<>();
+	private static int sNextPaletteId = 0;
+	private static KAPTileRunCache sCache = null;
+
+	protected static class Key
+	{
+		private final long mHash;
+		private final int mPalId;
+
+		protected Key(long nHash, int nPalId)
+		{
+			mHash = nHash;
+			mPalId = nPalId;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int) (mHash ^ (mHash >>> 32)) * 31 + mPalId;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			return (((Key) obj).mHash == mHash) && (((Key) obj).mPalId == mPalId);
+		}
+	}
+
+	// instance data
+	protected final LinkedHashMap<Key, KAPTileRuns> mMap = new LinkedHashMap<>(1024, 0.75f, true);
+	protected final long mMaxRuns;
+	protected long mRuns = 0;
+	protected long mHits = 0;
+	protected long mMisses = 0;
+
+	/**
+	 * @param nMaxRuns
+	 *          The maximum number of runs held in the cache. Each run takes 4 bytes.
+	 */
+	public KAPTileRunCache(long nMaxRuns)
+	{
+		mMaxRuns = nMaxRuns;
+	}
+
+	/**
+	 * @param nSizeMB
+	 *          The size of the cache in MB, used only when the cache is created.
+	 * @return The cache shared by all KAP bundle creators.
+	 */
+	public static synchronized KAPTileRunCache getCache(int nSizeMB)
+	{
+		if (sCache == null)
+		{
+			sCache = new KAPTileRunCache(nSizeMB * (1024L * 1024L / 4));
+			sLog.debug("tile run cache created with " + nSizeMB + " MB");
+		}
+		return sCache;
+	}
+
+	protected static synchronized int getPaletteId(IfOSMPalette tPal)
+	{
+		Integer nId = sPaletteIds.get(tPal);
+		if (nId == null)
+		{
+			nId = sNextPaletteId++;
+			sPaletteIds.put(tPal, nId);
+		}
+		return nId;
+	}
+
+	/**
+	 * @return The cached runs or null, if the tile has not been encoded with this palette yet.
+	 */
+	public synchronized KAPTileRuns get(long nHash, IfOSMPalette tPal)
+	{
+		KAPTileRuns tRuns = mMap.get(new Key(nHash, getPaletteId(tPal)));
+		if (tRuns != null)
+			++mHits;
+		else
+			++mMisses;
+		return tRuns;
+	}
+
+	public synchronized void put(long nHash, IfOSMPalette tPal, KAPTileRuns tRuns)
+	{
+		KAPTileRuns tOld = mMap.put(new Key(nHash, getPaletteId(tPal)), tRuns);
+		if (tOld != null)
+			mRuns -= tOld.getRunCount();
+		mRuns += tRuns.getRunCount();
+		Iterator<KAPTileRuns> tIt = mMap.values().iterator();
+		while ((mRuns > mMaxRuns) && tIt.hasNext())
+		{
+			mRuns -= tIt.next().getRunCount();
+			tIt.remove();
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "tile run cache: tiles=" + mMap.size() + ", runs=" + mRuns + ", hits=" + mHits + ", misses=" + mMisses;
+	}
+}
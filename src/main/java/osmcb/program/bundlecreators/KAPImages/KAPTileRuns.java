@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+import osmcb.utilities.image.IfOSMPalette;
+import osmcb.utilities.image.OSMPngPalette;
+
+/**
+ * This holds the runs of palette indices of one tile, row by row. A scan line of the map is assembled by appending the runs of all tiles in the row of tiles
+ * to a KAPLineEncoder, which merges runs of the same index at the tile borders.
+ * Each run is packed into one int: the palette index in the upper 16 bits, the run length in the lower 16 bits. Instances are not modified after creation.
+ */
+public class KAPTileRuns
+{
+	protected final int[] mRuns;
+	protected final int[] mRowStart;
+
+	protected KAPTileRuns(int[] tRuns, int[] tRowStart)
+	{
+		mRuns = tRuns;
+		mRowStart = tRowStart;
+	}
+
+	/**
+	 * Supplies the palette indices of one row of a tile.
+	 */
+	private interface RowIndices
+	{
+		void getRow(int nY, byte[] tIdx);
+	}
+
+	/**
+	 * Creates the runs of a tile.
+	 * 
+	 * @param tPixels
+	 *          The packed rgb values of the tile.
+	 * @param nWidth
+	 *          The width of the tile.
+	 * @param nHeight
+	 *          The height of the tile.
+	 * @param tPal
+	 *          The final palette.
+	 */
+	public static KAPTileRuns create(int[] tPixels, int nWidth, int nHeight, IfOSMPalette tPal)
+	{
+		return create(nWidth, nHeight, (nY, tIdx) -> tPal.mapRow(tPixels, nY * nWidth, nWidth, tIdx));
+	}
+
+	/**
+	 * Creates the runs of a tile decoded to an indexed image directly from its index raster, without converting the pixels to rgb. The source palette is
+	 * translated to the final palette once, so each pixel is one table access.
+	 * The pixels are the same as seen by the palette if the tile was drawn onto a transparent image, see {@link OSMPngPalette}.
+	 * 
+	 * @param img
+	 *          The decoded tile.
+	 * @param nWidth
+	 *          The width of the tile.
+	 * @param nHeight
+	 *          The height of the tile.
+	 * @param tPal
+	 *          The final palette.
+	 * @return The runs or null, if img is not an indexed image of the given size without partially transparent entries.
+	 */
+	public static KAPTileRuns createIndexed(BufferedImage img, int nWidth, int nHeight, IfOSMPalette tPal)
+	{
+		if ((img == null) || (img.getWidth() != nWidth) || (img.getHeight() != nHeight) || !(img.getColorModel() instanceof IndexColorModel))
+			return null;
+		IndexColorModel tCM = (IndexColorModel) img.getColorModel();
+		byte[] tMap = new byte[256];
+		Arrays.fill(tMap, (byte) tPal.getPIdx(0));
+		for (int nE = 0; nE < Math.min(tMap.length, tCM.getMapSize()); nE++)
+		{
+			int nAlpha = tCM.getAlpha(nE);
+			if (nAlpha == 0)
+				tMap[nE] = (byte) tPal.getPIdx(0);
+			else if (nAlpha == 0xFF)
+				tMap[nE] = (byte) tPal.getPIdx(tCM.getRGB(nE));
+			else
+				return null;
+		}
+		Raster tRaster = img.getRaster();
+		int[] tSamples = new int[nWidth];
+		return create(nWidth, nHeight, (nY, tIdx) -> {
+			tRaster.getSamples(0, nY, nWidth, 1, 0, tSamples);
+			for (int nX = 0; nX < nWidth; nX++)
+				tIdx[nX] = tMap[tSamples[nX] & 0xFF];
+		});
+	}
+
+	private static KAPTileRuns create(int nWidth, int nHeight, RowIndices tSrc)
+	{
+		int[] tRuns = new int[64];
+		int[] tRowStart = new int[nHeight + 1];
+		byte[] tIdx = new byte[nWidth];
+		int nRuns = 0;
+		for (int nY = 0; nY < nHeight; nY++)
+		{
+			tRowStart[nY] = nRuns;
+			tSrc.getRow(nY, tIdx);
+			int nX = 0;
+			while (nX < nWidth)
+			{
+				int nStart = nX;
+				int nRunIdx = tIdx[nX++] & 0xFF;
+				while ((nX < nWidth) && (tIdx[nX] == nRunIdx))
+					++nX;
+				if (nRuns == tRuns.length)
+				{
+					int[] tNew = new int[tRuns.length * 2];
+					System.arraycopy(tRuns, 0, tNew, 0, nRuns);
+					tRuns = tNew;
+				}
+				tRuns[nRuns++] = (nRunIdx << 16) | (nX - nStart);
+			}
+		}
+		tRowStart[nHeight] = nRuns;
+		int[] tFinal = new int[nRuns];
+		System.arraycopy(tRuns, 0, tFinal, 0, nRuns);
+		return new KAPTileRuns(tFinal, tRowStart);
+	}
+
+	/**
+	 * Creates the runs of a tile with one single color, i.e. one run per row.
+	 */
+	public static KAPTileRuns createUniform(int nPalIdx, int nWidth, int nHeight)
+	{
+		int[] tRuns = new int[nHeight];
+		int[] tRowStart = new int[nHeight + 1];
+		for (int nY = 0; nY < nHeight; nY++)
+		{
+			tRuns[nY] = (nPalIdx << 16) | nWidth;
+			tRowStart[nY] = nY;
+		}
+		tRowStart[nHeight] = nHeight;
+		return new KAPTileRuns(tRuns, tRowStart);
+	}
+
+	/**
+	 * Appends the runs of one row of the tile to the current line of the encoder.
+	 */
+	public void addRow(int nRow, KAPLineEncoder tEnc)
+	{
+		for (int nR = mRowStart[nRow]; nR < mRowStart[nRow + 1]; nR++)
+			tEnc.addRun(mRuns[nR] >>> 16, mRuns[nR] & 0xFFFF);
+	}
+
+	/**
+	 * @return The number of runs in the tile, used to limit the size of the cache.
+	 */
+	public int getRunCount()
+	{
+		return mRuns.length;
+	}
+}
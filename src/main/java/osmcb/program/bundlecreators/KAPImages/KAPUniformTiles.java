@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import osmb.mapsources.ACMapSource;
+import osmb.program.tiles.Tile;
+
+/**
+ * This recognizes tiles consisting of one single opaque color, like all-water or all-land tiles. Those tiles need not be decoded and drawn, they are added to
+ * the palette with one call and encoded with one run per scan line.
+ * Only tiles with small encoded image data are candidates, a uniform tile compresses to a few hundred bytes. The result of the check is remembered by the
+ * tiles content hash, so each distinct tile is decoded for the check only once.
+ * Error tiles, which stand for tiles not available, are never taken as uniform. They keep their error image, which is encoded once and then taken from the
+ * tile run cache under {@link #ERROR_HASH}.
+ */
+public class KAPUniformTiles
+{
+	protected static Logger sLog = Logger.getLogger(KAPUniformTiles.class);
+
+	/**
+	 * Tiles with more encoded data are not checked.
+	 */
+	public static final int MAX_ENCODED_SIZE = 2048;
+	protected static final int MAX_ENTRIES = 1 << 16;
+	/**
+	 * Marks a checked tile which is not uniform. 0 is transparent black, which is never registered as a uniform color.
+	 */
+	protected static final int MIXED = 0;
+	/**
+	 * The content hash used for all error tiles, they all carry the same image.
+	 */
+	public static final long ERROR_HASH = 0x4552524F52544C45L;
+
+	protected static final ConcurrentHashMap<Long, Integer> sTiles = new ConcurrentHashMap<>();
+
+	/**
+	 * A tile created for a tile not available. It carries the error image, so a missing tile stays visible in the map.
+	 */
+	public static class ErrorTile extends Tile
+	{
+		public ErrorTile(ACMapSource tSource, int x, int y, int nZoom)
+		{
+			super(tSource, x, y, nZoom);
+			setErrorImage();
+		}
+	}
+
+	/**
+	 * @param tile
+	 *          The tile.
+	 * @param nHash
+	 *          The content hash of the tiles image data.
+	 * @return The argb color of the tile if all its pixels have the same opaque color and it is not an error tile, else null.
+	 */
+	public static Integer getColor(Tile tile, long nHash)
+	{
+		if (tile instanceof ErrorTile)
+			return null;
+		byte[] tData = tile.getImageData();
+		if ((tData == null) || (tData.length > MAX_ENCODED_SIZE))
+			return null;
+		Integer nColor = sTiles.get(nHash);
+		if (nColor == null)
+		{
+			nColor = MIXED;
+			BufferedImage img = tile.getImage();
+			if (img != null)
+			{
+				int[] tPixels = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+				if (isUniform(tPixels))
+					nColor = tPixels[0];
+			}
+			if (sTiles.size() < MAX_ENTRIES)
+				sTiles.put(nHash, nColor);
+		}
+		return (nColor.intValue() != MIXED) ? nColor : null;
+	}
+
+	/**
+	 * @return true if all pixels have the same opaque color.
+	 */
+	public static boolean isUniform(int[] tPixels)
+	{
+		int nColor = tPixels[0];
+		if ((nColor >>> 24) != 0xFF)
+			return false;
+		for (int nP = 1; nP < tPixels.length; nP++)
+		{
+			if (tPixels[nP] != nColor)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This streams the files of a bundle into one zip archive. The map creators hand over a finished file with {@link #add(String, byte[])} and the files of a
+ * finished map together with {@link #addMap(String, Path, String, byte[])}, so a map is queued either completely or not at all. One single writer thread
+ * appends them to the archive in the order they arrive. The queue is bounded, so map creators wait if the writer falls behind.
+ * The writer is a daemon thread, so an aborted bundle, which never closes the archive, does not keep the program alive.
+ */
+public class KAPZipWriter implements Closeable, Runnable
+{
+	protected static Logger sLog = Logger.getLogger(KAPZipWriter.class);
+
+	protected static final int QUEUE_SIZE = 8;
+	protected static final int BUFFER_SIZE = 1 << 16;
+
+	protected static class ZipFile
+	{
+		protected final String mName;
+		protected final byte[] mData;
+		protected final Path mFile;
+
+		protected ZipFile(String strName, byte[] tData, Path tFile)
+		{
+			mName = strName;
+			mData = tData;
+			mFile = tFile;
+		}
+
+		/**
+		 * Deletes the spooled file, if any.
+		 */
+		protected void delete()
+		{
+			if (mFile == null)
+				return;
+			try
+			{
+				Files.deleteIfExists(mFile);
+			}
+			catch (IOException e)
+			{
+				sLog.warn("spooled file='" + mFile + "' not deleted: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Tells the writer thread to finish the archive.
+	 */
+	protected static final ZipFile[] END = new ZipFile[0];
+
+	// instance data
+	protected final Path mZipPath;
+	protected final ZipOutputStream mZip;
+	protected final BlockingQueue<ZipFile[]> mQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	protected final Thread mWriter;
+	protected volatile IOException mError = null;
+	protected int mFiles = 0;
+	protected long mBytes = 0;
+
+	/**
+	 * Creates the archive and starts the writer thread.
+	 */
+	public KAPZipWriter(Path tZipPath) throws IOException
+	{
+		mZipPath = tZipPath;
+		mZip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tZipPath), BUFFER_SIZE));
+		mWriter = new Thread(this, "KAPZipWriter-" + tZipPath.getFileName());
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+
+	/**
+	 * Queues one file for the archive.
+	 * 
+	 * @param strName
+	 *          The name of the file in the archive, including its path.
+	 * @param tData
+	 *          The complete content of the file.
+	 * @throws IOException
+	 *           If the writer thread already failed.
+	 */
+	public void add(String strName, byte[] tData) throws IOException, InterruptedException
+	{
+		if (mError != null)
+			throw mError;
+		mQueue.put(new ZipFile[] { new ZipFile(strName, tData, null) });
+	}
+
+	/**
+	 * Queues the files of one map for the archive with a single call, so the archive never holds a map partially. The kap-file is spooled to disk, the writer
+	 * thread copies it into the archive and deletes it afterwards. If this throws, nothing has been queued and the spooled file still belongs to the caller.
+	 * 
+	 * @param strKapName
+	 *          The name of the kap-file in the archive, including its path.
+	 * @param tKapFile
+	 *          The spooled kap-file.
+	 * @param strBsbName
+	 *          The name of the bsb-file in the archive, including its path.
+	 * @param tBsbData
+	 *          The complete content of the bsb-file.
+	 * @throws IOException
+	 *           If the writer thread already failed.
+	 */
+	public void addMap(String strKapName, Path tKapFile, String strBsbName, byte[] tBsbData) throws IOException, InterruptedException
+	{
+		if (mError != null)
+			throw mError;
+		mQueue.put(new ZipFile[] { new ZipFile(strKapName, null, tKapFile), new ZipFile(strBsbName, tBsbData, null) });
+	}
+
+	@Override
+	public void run()
+	{
+		sLog.debug("writing archive='" + mZipPath + "'");
+		try
+		{
+			ZipFile[] tFiles;
+			while ((tFiles = mQueue.take()) != END)
+			{
+				for (ZipFile tFile : tFiles)
+					write(tFile);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			sLog.error("archive writer for='" + mZipPath + "' interrupted");
+			mError = new IOException("archive writer interrupted", e);
+		}
+	}
+
+	/**
+	 * Appends one file to the archive. After an error the files are only deleted, so the queue is drained and no map creator is blocked.
+	 */
+	protected void write(ZipFile tFile)
+	{
+		if (mError != null)
+		{
+			tFile.delete();
+			return;
+		}
+		try
+		{
+			mZip.putNextEntry(new ZipEntry(tFile.mName));
+			long nSize;
+			if (tFile.mFile != null)
+				nSize = Files.copy(tFile.mFile, mZip);
+			else
+			{
+				mZip.write(tFile.mData);
+				nSize = tFile.mData.length;
+			}
+			mZip.closeEntry();
+			++mFiles;
+			mBytes += nSize;
+			sLog.trace("archived file='" + tFile.mName + "', size=" + nSize);
+		}
+		catch (IOException e)
+		{
+			sLog.error("writing archive='" + mZipPath + "' failed at file='" + tFile.mName + "'", e);
+			mError = e;
+		}
+		finally
+		{
+			tFile.delete();
+		}
+	}
+
+	/**
+	 * Waits for all queued files to be written and finishes the archive.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			mQueue.put(END);
+			mWriter.join();
+		}
+		catch (InterruptedException e)
+		{
+			mWriter.interrupt();
+			throw new IOException("closing archive='" + mZipPath + "' interrupted", e);
+		}
+		finally
+		{
+			mZip.close();
+		}
+		if (mError != null)
+			throw mError;
+		sLog.info("finished archive='" + mZipPath + "', files=" + mFiles + ", size=" + mBytes);
+	}
+}
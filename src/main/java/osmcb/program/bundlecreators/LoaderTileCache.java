@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators;
+
+import osmb.mapsources.ACMapSource;
+import osmb.mapsources.TileAddress;
+import osmb.program.tiles.MemoryTileCache;
+import osmb.program.tiles.Tile;
+
+/**
+ * This is handed to the TileLoader instead of a MemoryTileCache of its own, so the downloaded tiles are not held a second time outside the size limit of the
+ * {@link TileCache}.
+ * The TileLoader finds the tiles of the shared tile cache. It does not add any tiles, the bundle creators add the downloaded tiles to the tile cache in
+ * tileLoadingFinished() if they compose maps from them.
+ */
+public class LoaderTileCache extends MemoryTileCache
+{
+	@Override
+	public Tile getTile(ACMapSource tSource, TileAddress tAddr)
+	{
+		return ACBundleCreator.getTileImageCache().peekTile(tSource, tAddr);
+	}
+
+	@Override
+	public void addTile(Tile tile)
+	{
+	}
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators;
+
+import java.io.Closeable;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import osmb.program.map.IfMap;
+import osmb.program.tiles.Tile;
+
+/**
+ * This streams all tiles in the x/y rectangle of a map, one range at a time. A range is one row of tiles if the map is read by rows, else one column, so the
+ * ranges arrive in the order of the compose loop.
+ * The ranges are read by a task on a shared pool of background threads, which stays up to READ_AHEAD ranges ahead of the consumer. So the round trips to the tile store overlap with
+ * decoding and composing the tiles of the previous ranges instead of adding up with them.
+ * The tile store offers only single tile lookups, so a range is read by {@link #readRange(int)} tile by tile. A store with a range query can be plugged in
+ * there without changing the consumers.
+ * A reader is used by one consumer thread only and has to be closed, which stops the reading task if not all ranges have been consumed. The pool is bounded
+ * to the number of processors, further readers wait for a free thread. So a consumer must not wait for the ranges of a second reader while it holds an
+ * unfinished one.
+ */
+public class MapTileReader implements Closeable
+{
+	protected static Logger sLog = Logger.getLogger(MapTileReader.class);
+
+	/**
+	 * The number of ranges read in advance.
+	 */
+	public static final int READ_AHEAD = 4;
+
+	/**
+	 * This looks up a single tile of the map.
+	 */
+	public interface IfTileSource
+	{
+		/**
+		 * @return The tile or null, if the tile is not available.
+		 */
+		Tile findTile(int x, int y);
+	}
+
+	private static final Tile[] FAILED = new Tile[0];
+
+	private static final AtomicInteger sThreadNr = new AtomicInteger();
+	private static final ExecutorService sExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), MapTileReader::newThread);
+
+	protected final IfMap mMap;
+	protected final boolean mByRows;
+	protected final IfTileSource mSource;
+	private final BlockingQueue<Tile[]> mQueue = new ArrayBlockingQueue<>(READ_AHEAD);
+	private final Future<?> mTask;
+	private volatile Throwable mError = null;
+	private int mNextRange = 0;
+
+	private static Thread newThread(Runnable tTask)
+	{
+		Thread tThread = new Thread(tTask, "TileReader-" + sThreadNr.incrementAndGet());
+		tThread.setDaemon(true);
+		return tThread;
+	}
+
+	/**
+	 * Creates the reader and starts reading the first ranges.
+	 * 
+	 * @param tMap
+	 *          The map whose tiles are read.
+	 * @param bByRows
+	 *          true to read the map row by row from the top, false to read it column by column from the left.
+	 * @param tSource
+	 *          The lookup of a single tile.
+	 */
+	public MapTileReader(IfMap tMap, boolean bByRows, IfTileSource tSource)
+	{
+		mMap = tMap;
+		mByRows = bByRows;
+		mSource = tSource;
+		mTask = sExecutor.submit(this::readRanges);
+	}
+
+	/**
+	 * @return The number of ranges, i.e. rows or columns, of the map.
+	 */
+	public int getRangeCount()
+	{
+		return mByRows ? mMap.getYMax() - mMap.getYMin() + 1 : mMap.getXMax() - mMap.getXMin() + 1;
+	}
+
+	/**
+	 * @return The next range of tiles, from left to right for a row, from top to bottom for a column. Tiles not available are null.
+	 * @throws InterruptedException
+	 *           if the consumer is interrupted while waiting for the range.
+	 */
+	public Tile[] nextRange() throws InterruptedException
+	{
+		if (mNextRange >= getRangeCount())
+			throw new NoSuchElementException("all tiles of map " + mMap.getName() + " have been read");
+		Tile[] tRange = mQueue.take();
+		if (tRange == FAILED)
+			throw new IllegalStateException("reading the tiles of map " + mMap.getName() + " failed", mError);
+		++mNextRange;
+		return tRange;
+	}
+
+	/**
+	 * This runs in a background thread. Any failure, including errors like an OutOfMemoryError, is handed to the consumer, so it never waits for a range
+	 * which will not come.
+	 */
+	protected void readRanges()
+	{
+		try
+		{
+			for (int nRange = 0; nRange < getRangeCount(); nRange++)
+				mQueue.put(readRange(nRange));
+		}
+		catch (InterruptedException e)
+		{
+			// closed before all ranges have been consumed
+		}
+		catch (Throwable e)
+		{
+			sLog.error("reading the tiles of map " + mMap.getName() + " failed", e);
+			mError = e;
+			try
+			{
+				mQueue.put(FAILED);
+			}
+			catch (InterruptedException e2)
+			{
+				// closed, nobody waits for the range
+			}
+		}
+	}
+
+	/**
+	 * Reads all tiles of one range.
+	 * 
+	 * @param nRange
+	 *          The number of the range, counted from the top or from the left of the map.
+	 */
+	protected Tile[] readRange(int nRange)
+	{
+		if (mByRows)
+		{
+			int y = mMap.getYMin() + nRange;
+			Tile[] tRange = new Tile[mMap.getXMax() - mMap.getXMin() + 1];
+			for (int x = mMap.getXMin(); x <= mMap.getXMax(); x++)
+				tRange[x - mMap.getXMin()] = mSource.findTile(x, y);
+			return tRange;
+		}
+		int x = mMap.getXMin() + nRange;
+		Tile[] tRange = new Tile[mMap.getYMax() - mMap.getYMin() + 1];
+		for (int y = mMap.getYMin(); y <= mMap.getYMax(); y++)
+			tRange[y - mMap.getYMin()] = mSource.findTile(x, y);
+		return tRange;
+	}
+
+	/**
+	 * Stops the reading task.
+	 */
+	@Override
+	public void close()
+	{
+		mTask.cancel(true);
+	}
+}
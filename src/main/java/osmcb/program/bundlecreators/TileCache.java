@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import osmb.mapsources.ACMapSource;
+import osmb.mapsources.MP2MapSpace;
+import osmb.mapsources.TileAddress;
+import osmb.program.map.IfMap;
+import osmb.program.tiles.Tile;
+
+/**
+ * This caches the tiles read or downloaded for the maps of a bundle. It is shared by all map threads and limited by the bytes the tiles take, counted as the
+ * encoded data plus the decoded image.
+ * The cache is a segmented LRU: a new tile goes into the probation segment, a tile hit again is moved to the protected segment. The protected segment takes
+ * up to 80% of the cache, its least recently used tiles fall back into the probation segment. So tiles used only once, like most tiles of a single map, do
+ * not push out tiles used again and again.
+ * The maps waiting to be composed are registered with the cache. When a tile has to be dropped, tiles not needed by any of these maps are dropped first,
+ * so tiles shared by overlapping maps stay in the cache until the last of these maps has been composed.
+ */
+public class TileCache
+{
+	protected static Logger sLog = Logger.getLogger(TileCache.class);
+
+	/**
+	 * The bytes of a decoded tile image.
+	 */
+	public static final int DECODED_TILE_BYTES = MP2MapSpace.TECH_TILESIZE * MP2MapSpace.TECH_TILESIZE * 4;
+	/**
+	 * The number of least recently used tiles examined for a tile not needed by a pending map.
+	 */
+	protected static final int MAX_SCAN = 16;
+	/**
+	 * The pending maps are indexed by blocks of 2^BLOCK_BITS x 2^BLOCK_BITS tiles.
+	 */
+	protected static final int BLOCK_BITS = 6;
+
+	protected static class Key
+	{
+		private final ACMapSource mSource;
+		private final int mX;
+		private final int mY;
+		private final int mZoom;
+
+		protected Key(ACMapSource tSource, int x, int y, int nZoom)
+		{
+			mSource = tSource;
+			mX = x;
+			mY = y;
+			mZoom = nZoom;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ((mX * 31 + mY) * 31 + mZoom) * 31 + Objects.hashCode(mSource);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key tKey = (Key) obj;
+			return (tKey.mX == mX) && (tKey.mY == mY) && (tKey.mZoom == mZoom) && Objects.equals(tKey.mSource, mSource);
+		}
+	}
+
+	protected static class Entry
+	{
+		private final Key mKey;
+		private final Tile mTile;
+		private final long mBytes;
+		private boolean mProtected = false;
+
+		protected Entry(Key tKey, Tile tile, long nBytes)
+		{
+			mKey = tKey;
+			mTile = tile;
+			mBytes = nBytes;
+		}
+	}
+
+	// instance data
+	protected final LinkedHashMap<Key, Entry> mProbation = new LinkedHashMap<>(1024);
+	protected final LinkedHashMap<Key, Entry> mProtected = new LinkedHashMap<>(1024);
+	/**
+	 * The maps waiting to be composed, by the blocks of tiles they overlap. The keys hold the block numbers instead of the tile numbers.
+	 */
+	protected final Map<Key, List<IfMap>> mPendingBlocks = new HashMap<>();
+	protected final Set<IfMap> mPendingMaps = new HashSet<>();
+	protected final long mMaxBytes;
+	protected final long mMaxProtectedBytes;
+	protected long mBytes = 0;
+	protected long mProtectedBytes = 0;
+	protected long mHits = 0;
+	protected long mMisses = 0;
+	protected long mEvictions = 0;
+	protected long mEvictionsPending = 0;
+
+	/**
+	 * @param nMaxBytes
+	 *          The maximum number of bytes held by the cache.
+	 */
+	public TileCache(long nMaxBytes)
+	{
+		mMaxBytes = nMaxBytes;
+		mMaxProtectedBytes = nMaxBytes / 5 * 4;
+	}
+
+	/**
+	 * @return The tile or null, if it is not in the cache.
+	 */
+	public synchronized Tile getTile(ACMapSource tSource, TileAddress tAddr)
+	{
+		Key tKey = new Key(tSource, tAddr.getX(), tAddr.getY(), tAddr.getZoom());
+		Entry tEntry = mProtected.remove(tKey);
+		if (tEntry == null)
+		{
+			tEntry = mProbation.remove(tKey);
+			if (tEntry == null)
+			{
+				++mMisses;
+				return null;
+			}
+			tEntry.mProtected = true;
+			mProtectedBytes += tEntry.mBytes;
+		}
+		++mHits;
+		// move to the most recently used end of the protected segment
+		mProtected.put(tKey, tEntry);
+		while (mProtectedBytes > mMaxProtectedBytes)
+		{
+			Iterator<Entry> tIt = mProtected.values().iterator();
+			Entry tDemoted = tIt.next();
+			tIt.remove();
+			tDemoted.mProtected = false;
+			mProtectedBytes -= tDemoted.mBytes;
+			mProbation.put(tDemoted.mKey, tDemoted);
+		}
+		return tEntry.mTile;
+	}
+
+	/**
+	 * This does not count as a lookup and does not change the order of the tiles, e.g. to check if a tile needs to be downloaded.
+	 * 
+	 * @return The tile or null, if it is not in the cache.
+	 */
+	public synchronized Tile peekTile(ACMapSource tSource, TileAddress tAddr)
+	{
+		Key tKey = new Key(tSource, tAddr.getX(), tAddr.getY(), tAddr.getZoom());
+		Entry tEntry = mProbation.get(tKey);
+		if (tEntry == null)
+			tEntry = mProtected.get(tKey);
+		return (tEntry != null) ? tEntry.mTile : null;
+	}
+
+	/**
+	 * Adds a tile to the probation segment. A tile already cached is replaced.
+	 */
+	public synchronized void addTile(Tile tile)
+	{
+		Key tKey = new Key(tile.getSource(), tile.getXtile(), tile.getYtile(), tile.getZoom());
+		remove(tKey);
+		byte[] tData = tile.getImageData();
+		Entry tEntry = new Entry(tKey, tile, DECODED_TILE_BYTES + ((tData != null) ? tData.length : 0));
+		mProbation.put(tKey, tEntry);
+		mBytes += tEntry.mBytes;
+		while ((mBytes > mMaxBytes) && (!mProbation.isEmpty() || !mProtected.isEmpty()))
+			evict(!mProbation.isEmpty() ? mProbation : mProtected);
+	}
+
+	protected void remove(Key tKey)
+	{
+		Entry tEntry = mProbation.remove(tKey);
+		if (tEntry == null)
+		{
+			tEntry = mProtected.remove(tKey);
+			if (tEntry == null)
+				return;
+			mProtectedBytes -= tEntry.mBytes;
+		}
+		mBytes -= tEntry.mBytes;
+	}
+
+	/**
+	 * Drops the least recently used tile of the segment not needed by a pending map. If all of the first {@link #MAX_SCAN} tiles are needed, the least recently
+	 * used one is dropped anyway.
+	 */
+	protected void evict(LinkedHashMap<Key, Entry> tSegment)
+	{
+		Entry tVictim = null;
+		int nScanned = 0;
+		for (Entry tEntry : tSegment.values())
+		{
+			if (!isPending(tEntry.mKey))
+			{
+				tVictim = tEntry;
+				break;
+			}
+			if (++nScanned >= MAX_SCAN)
+				break;
+		}
+		if (tVictim == null)
+		{
+			tVictim = tSegment.values().iterator().next();
+			++mEvictionsPending;
+		}
+		remove(tVictim.mKey);
+		++mEvictions;
+	}
+
+	/**
+	 * Only the pending maps overlapping the block of the tile are checked.
+	 * 
+	 * @return true if the tile lies in a map waiting to be composed.
+	 */
+	protected boolean isPending(Key tKey)
+	{
+		List<IfMap> tMaps = mPendingBlocks.get(new Key(tKey.mSource, tKey.mX >> BLOCK_BITS, tKey.mY >> BLOCK_BITS, tKey.mZoom));
+		if (tMaps == null)
+			return false;
+		for (IfMap tMap : tMaps)
+		{
+			if ((tKey.mX >= tMap.getXMin()) && (tKey.mX <= tMap.getXMax()) && (tKey.mY >= tMap.getYMin()) && (tKey.mY <= tMap.getYMax()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Registers a map waiting to be composed. Its tiles are kept in preference to other tiles until {@link #removePendingMap(IfMap)} is called.
+	 */
+	public synchronized void addPendingMap(IfMap tMap)
+	{
+		if (!mPendingMaps.add(tMap))
+			return;
+		for (int nBX = tMap.getXMin() >> BLOCK_BITS; nBX <= tMap.getXMax() >> BLOCK_BITS; nBX++)
+		{
+			for (int nBY = tMap.getYMin() >> BLOCK_BITS; nBY <= tMap.getYMax() >> BLOCK_BITS; nBY++)
+			{
+				Key tBlock = new Key(tMap.getMapSource(), nBX, nBY, tMap.getZoom());
+				List<IfMap> tMaps = mPendingBlocks.get(tBlock);
+				if (tMaps == null)
+				{
+					tMaps = new ArrayList<>(2);
+					mPendingBlocks.put(tBlock, tMaps);
+				}
+				tMaps.add(tMap);
+			}
+		}
+	}
+
+	/**
+	 * Removes a map registered by {@link #addPendingMap(IfMap)}, usually after it has been composed. A map not registered is ignored.
+	 */
+	public synchronized void removePendingMap(IfMap tMap)
+	{
+		if (!mPendingMaps.remove(tMap))
+			return;
+		for (int nBX = tMap.getXMin() >> BLOCK_BITS; nBX <= tMap.getXMax() >> BLOCK_BITS; nBX++)
+		{
+			for (int nBY = tMap.getYMin() >> BLOCK_BITS; nBY <= tMap.getYMax() >> BLOCK_BITS; nBY++)
+			{
+				Key tBlock = new Key(tMap.getMapSource(), nBX, nBY, tMap.getZoom());
+				List<IfMap> tMaps = mPendingBlocks.get(tBlock);
+				if ((tMaps != null) && tMaps.remove(tMap) && tMaps.isEmpty())
+					mPendingBlocks.remove(tBlock);
+			}
+		}
+	}
+
+	/**
+	 * @return The share of lookups which found the tile in the cache.
+	 */
+	public synchronized double getHitRate()
+	{
+		long nLookups = mHits + mMisses;
+		return (nLookups > 0) ? (double) mHits / nLookups : 0.0;
+	}
+
+	/**
+	 * @return The number of tiles dropped to keep the cache within its size.
+	 */
+	public synchronized long getEvictions()
+	{
+		return mEvictions;
+	}
+
+	/**
+	 * @return The number of bytes the tiles in the cache take.
+	 */
+	public synchronized long getResidentBytes()
+	{
+		return mBytes;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("tile cache: tiles=%d (protected=%d), MB=%d of %d, hits=%d, misses=%d, hit rate=%.1f%%, evictions=%d (needed by pending maps=%d)",
+		    mProbation.size() + mProtected.size(), mProtected.size(), mBytes >> 20, mMaxBytes >> 20, mHits, mMisses, getHitRate() * 100.0, mEvictions,
+		    mEvictionsPending);
+	}
+}
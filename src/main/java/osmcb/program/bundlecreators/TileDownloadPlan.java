@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import osmb.mapsources.TileAddress;
+import osmb.program.map.IfMap;
+
+/**
+ * This is the list of the tiles of a map which have to be downloaded, i.e. which are not available in the tile cache or in the tile store. It is made
+ * before the download jobs are scheduled, so no job is created for a tile already available.
+ */
+public class TileDownloadPlan
+{
+	/**
+	 * This checks if a single tile of the map is available.
+	 */
+	public interface IfTileCheck
+	{
+		boolean isAvailable(int x, int y);
+	}
+
+	protected final IfMap mMap;
+	protected final List<TileAddress> mMissing = new ArrayList<>();
+	protected int mTiles = 0;
+
+	protected TileDownloadPlan(IfMap tMap)
+	{
+		mMap = tMap;
+	}
+
+	/**
+	 * Looks up all tiles of the map.
+	 * 
+	 * @param tMap
+	 *          The map to be downloaded.
+	 * @param tCheck
+	 *          The check of a single tile.
+	 * @return The plan.
+	 */
+	public static TileDownloadPlan create(IfMap tMap, IfTileCheck tCheck)
+	{
+		TileDownloadPlan tPlan = new TileDownloadPlan(tMap);
+		for (int y = tMap.getYMin(); y <= tMap.getYMax(); y++)
+		{
+			for (int x = tMap.getXMin(); x <= tMap.getXMax(); x++)
+			{
+				++tPlan.mTiles;
+				if (!tCheck.isAvailable(x, y))
+					tPlan.mMissing.add(new TileAddress(x, y, tMap.getZoom()));
+			}
+		}
+		return tPlan;
+	}
+
+	/**
+	 * @return The addresses of the tiles to be downloaded, row by row.
+	 */
+	public List<TileAddress> getMissing()
+	{
+		return mMissing;
+	}
+
+	/**
+	 * @return The number of tiles of the map.
+	 */
+	public int getTileCount()
+	{
+		return mTiles;
+	}
+
+	/**
+	 * @return The share of the tiles already available.
+	 */
+	public double getHitRatio()
+	{
+		return (mTiles > 0) ? (double) (mTiles - mMissing.size()) / mTiles : 1.0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("download plan map='%s': tiles=%d, available=%d, to download=%d, hit ratio=%.1f%%", mMap.getName(), mTiles,
+		    mTiles - mMissing.size(), mMissing.size(), getHitRatio() * 100.0);
+	}
+}
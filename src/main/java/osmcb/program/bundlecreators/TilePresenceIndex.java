@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import osmb.mapsources.ACMapSource;
+
+/**
+ * This records which tiles of one map source and zoom level are in the tile store, so the question 'do we have this tile' is answered without a query to the
+ * tile store, especially for tiles never fetched, like the open sea tiles at the edges of many maps.
+ * The tiles are grouped in blocks of 64 x 64 tiles. Each block holds two bitmaps, one row of 64 tiles per long: the tiles known to the index and, of these,
+ * the tiles present in the store. A tile is known after it has been looked up in the store once or after it has been put into the store. Only blocks with
+ * known tiles take memory.
+ * The indexes are persisted in a sidecar directory of the tile store, loaded at their first use and saved by {@link #saveAll()} at the end of a bundle.
+ * Only the present tiles are persisted. Tiles may be put into the tile store by other programs sharing it or by a run which ended before saving the index, so
+ * a tile absent in one run is unknown again in the next one. Within a run absent tiles only spare the tile store query when planning the downloads, composing
+ * a map always queries the store.
+ */
+public class TilePresenceIndex
+{
+	protected static Logger sLog = Logger.getLogger(TilePresenceIndex.class);
+
+	public static final String DIR_NAME = "presence";
+	public static final String FILE_EXT = ".tpi";
+
+	public static final int UNKNOWN = 0;
+	public static final int PRESENT = 1;
+	public static final int ABSENT = 2;
+
+	protected static final int BLOCK_BITS = 6;
+	protected static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	protected static final int BLOCK_MASK = BLOCK_SIZE - 1;
+	private static final int FILE_MAGIC = 0x54504931; // "TPI1"
+
+	private static final Map<String, TilePresenceIndex> sIndexes = new HashMap<>();
+
+	// instance data
+	protected final Path mFile;
+	/**
+	 * The blocks by their position, the first BLOCK_SIZE longs are the known tiles, the second BLOCK_SIZE longs the present tiles.
+	 */
+	protected final HashMap<Long, long[]> mBlocks = new HashMap<>();
+	protected boolean mModified = false;
+	protected long mLookups = 0;
+	protected long mAnswered = 0;
+
+	/**
+	 * @param tFile
+	 *          The file the index is persisted in, null keeps it in memory only.
+	 */
+	public TilePresenceIndex(Path tFile)
+	{
+		mFile = tFile;
+	}
+
+	/**
+	 * @param tTileStoreDir
+	 *          The tile store directory, used only when the index is loaded. null keeps the index in memory only.
+	 * @return The index of the map source and zoom level. It is loaded at the first call.
+	 */
+	public static synchronized TilePresenceIndex getIndex(File tTileStoreDir, ACMapSource tSource, int nZoom)
+	{
+		String strKey = tSource.getName().replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + nZoom;
+		TilePresenceIndex tIndex = sIndexes.get(strKey);
+		if (tIndex == null)
+		{
+			tIndex = new TilePresenceIndex((tTileStoreDir != null) ? tTileStoreDir.toPath().resolve(DIR_NAME).resolve(strKey + FILE_EXT) : null);
+			tIndex.load();
+			sIndexes.put(strKey, tIndex);
+		}
+		return tIndex;
+	}
+
+	/**
+	 * Saves all indexes modified since they have been loaded.
+	 */
+	public static synchronized void saveAll()
+	{
+		for (TilePresenceIndex tIndex : sIndexes.values())
+		{
+			tIndex.save();
+			sLog.debug(tIndex.toString());
+		}
+	}
+
+	protected static long getBlockKey(int x, int y)
+	{
+		return ((long) (x >> BLOCK_BITS) << 32) | ((y >> BLOCK_BITS) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return {@link #PRESENT} or {@link #ABSENT} if the tile is known, else {@link #UNKNOWN}.
+	 */
+	public synchronized int getState(int x, int y)
+	{
+		++mLookups;
+		long[] tBlock = mBlocks.get(getBlockKey(x, y));
+		if (tBlock == null)
+			return UNKNOWN;
+		long nBit = 1L << (x & BLOCK_MASK);
+		int nRow = y & BLOCK_MASK;
+		if ((tBlock[nRow] & nBit) == 0)
+			return UNKNOWN;
+		++mAnswered;
+		return ((tBlock[BLOCK_SIZE + nRow] & nBit) != 0) ? PRESENT : ABSENT;
+	}
+
+	/**
+	 * Records the result of a lookup in the tile store or a tile put into the tile store.
+	 */
+	public synchronized void setPresent(int x, int y, boolean bPresent)
+	{
+		long nKey = getBlockKey(x, y);
+		long[] tBlock = mBlocks.get(nKey);
+		if (tBlock == null)
+		{
+			tBlock = new long[2 * BLOCK_SIZE];
+			mBlocks.put(nKey, tBlock);
+		}
+		long nBit = 1L << (x & BLOCK_MASK);
+		int nRow = y & BLOCK_MASK;
+		long nKnown = tBlock[nRow] | nBit;
+		long nPresent = bPresent ? tBlock[BLOCK_SIZE + nRow] | nBit : tBlock[BLOCK_SIZE + nRow] & ~nBit;
+		if ((nKnown != tBlock[nRow]) || (nPresent != tBlock[BLOCK_SIZE + nRow]))
+		{
+			tBlock[nRow] = nKnown;
+			tBlock[BLOCK_SIZE + nRow] = nPresent;
+			mModified = true;
+		}
+	}
+
+	protected synchronized void load()
+	{
+		if (mFile == null)
+			return;
+		try (DataInputStream tIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(mFile))))
+		{
+			if (tIn.readInt() != FILE_MAGIC)
+				throw new IOException("unknown format");
+			int nBlocks = tIn.readInt();
+			for (int nB = 0; nB < nBlocks; nB++)
+			{
+				long nKey = tIn.readLong();
+				long[] tBlock = new long[2 * BLOCK_SIZE];
+				for (int nL = 0; nL < tBlock.length; nL++)
+					tBlock[nL] = tIn.readLong();
+				// older files hold absent tiles too
+				for (int nRow = 0; nRow < BLOCK_SIZE; nRow++)
+					tBlock[nRow] &= tBlock[BLOCK_SIZE + nRow];
+				mBlocks.put(nKey, tBlock);
+			}
+			sLog.debug("tile presence index " + mFile + " loaded, blocks=" + nBlocks);
+		}
+		catch (NoSuchFileException e)
+		{
+			// not yet saved
+		}
+		catch (IOException e)
+		{
+			sLog.warn("reading tile presence index " + mFile + " failed, it is rebuilt: " + e.getMessage());
+			mBlocks.clear();
+		}
+	}
+
+	/**
+	 * Saves the present tiles, see the class description. Blocks without any present tile are left out.
+	 */
+	protected synchronized void save()
+	{
+		if ((mFile == null) || !mModified)
+			return;
+		Path tTmp = null;
+		try
+		{
+			Files.createDirectories(mFile.getParent());
+			tTmp = Files.createTempFile(mFile.getParent(), null, null);
+			try (DataOutputStream tOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tTmp))))
+			{
+				List<Map.Entry<Long, long[]>> tPresent = new ArrayList<>();
+				for (Map.Entry<Long, long[]> tEntry : mBlocks.entrySet())
+				{
+					long[] tBlock = tEntry.getValue();
+					for (int nRow = 0; nRow < BLOCK_SIZE; nRow++)
+					{
+						if (tBlock[BLOCK_SIZE + nRow] != 0)
+						{
+							tPresent.add(tEntry);
+							break;
+						}
+					}
+				}
+				tOut.writeInt(FILE_MAGIC);
+				tOut.writeInt(tPresent.size());
+				for (Map.Entry<Long, long[]> tEntry : tPresent)
+				{
+					long[] tBlock = tEntry.getValue();
+					tOut.writeLong(tEntry.getKey());
+					// the present tiles are written as known and present
+					for (int nRow = 0; nRow < BLOCK_SIZE; nRow++)
+						tOut.writeLong(tBlock[BLOCK_SIZE + nRow]);
+					for (int nRow = 0; nRow < BLOCK_SIZE; nRow++)
+						tOut.writeLong(tBlock[BLOCK_SIZE + nRow]);
+				}
+			}
+			Files.move(tTmp, mFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tTmp = null;
+			mModified = false;
+		}
+		catch (IOException e)
+		{
+			sLog.warn("writing tile presence index " + mFile + " failed: " + e.getMessage());
+		}
+		finally
+		{
+			if (tTmp != null)
+				tTmp.toFile().delete();
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "tile presence index " + mFile + ": blocks=" + mBlocks.size() + ", lookups=" + mLookups + ", answered without tile store=" + mAnswered;
+	}
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import osmb.mapsources.TileAddress;
+import osmb.program.tiles.Tile;
+import osmb.program.tilestore.sqlitedb.SQLiteDbTileStore;
+
+/**
+ * This writes the downloaded tiles to the tile store in one single writer thread. The download threads only put the tiles into a bounded queue, so they do
+ * not wait for the tile store unless the writer falls behind by the whole queue. The writer takes all tiles waiting in the queue at once and writes them in
+ * one go, so the tile store is accessed by one thread only and never by several download threads at the same time.
+ * Before a map is created from the tile store, {@link #flush()} waits until all tiles queued so far have been written.
+ * The presence index of a tile is updated by the writer after the tile has been written, so a tile is never taken as present before it is in the tile store.
+ */
+public class TileWriteQueue
+{
+	protected static Logger sLog = Logger.getLogger(TileWriteQueue.class);
+
+	/**
+	 * The maximum number of tiles written in one batch.
+	 */
+	protected static final int MAX_BATCH = 256;
+
+	/**
+	 * One tile to be written, either as a tile or as encoded data at an address.
+	 */
+	protected static class Entry
+	{
+		private final SQLiteDbTileStore mStore;
+		private final Tile mTile;
+		private final byte[] mData;
+		private final TileAddress mAddr;
+		private final TilePresenceIndex mIndex;
+
+		protected Entry(SQLiteDbTileStore tStore, Tile tile, byte[] tData, TileAddress tAddr, TilePresenceIndex tIndex)
+		{
+			mStore = tStore;
+			mTile = tile;
+			mData = tData;
+			mAddr = tAddr;
+			mIndex = tIndex;
+		}
+
+		protected void write() throws IOException
+		{
+			if (mTile != null)
+				mStore.putTile(mTile);
+			else
+				mStore.putTileData(mData, mAddr);
+		}
+
+		/**
+		 * Records the outcome of {@link #write()} in the presence index. A tile without image data is not recorded, a tile which could not be written is
+		 * recorded as absent, so it is looked up or downloaded again.
+		 */
+		protected void setPresent(boolean bWritten)
+		{
+			if (mIndex == null)
+				return;
+			if (mTile != null)
+			{
+				if (!bWritten || (mTile.getImageData() != null))
+					mIndex.setPresent(mTile.getXtile(), mTile.getYtile(), bWritten);
+			}
+			else if (!bWritten || (mData != null))
+				mIndex.setPresent(mAddr.getX(), mAddr.getY(), bWritten);
+		}
+	}
+
+	// instance data
+	protected final BlockingQueue<Entry> mQueue;
+	protected final Thread mWriter;
+	/**
+	 * The number of tiles queued and the number of tiles written (or failed), guarded by this.
+	 */
+	protected long mQueued = 0;
+	protected long mWritten = 0;
+	protected long mErrors = 0;
+	protected long mBatches = 0;
+	/**
+	 * Set when the writer thread has ended, so nobody waits for tiles which will never be written.
+	 */
+	protected boolean mStopped = false;
+
+	/**
+	 * Creates the queue and starts the writer thread.
+	 * 
+	 * @param nCapacity
+	 *          The maximum number of tiles waiting to be written.
+	 */
+	public TileWriteQueue(int nCapacity)
+	{
+		mQueue = new ArrayBlockingQueue<>(Math.max(1, nCapacity));
+		mWriter = new Thread(this::writeTiles, "TileWriter");
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+
+	/**
+	 * Queues a tile to be written by {@link SQLiteDbTileStore#putTile(Tile)}.
+	 * 
+	 * @param tIndex
+	 *          The presence index of the tiles source and zoom level, updated once the tile has been written. null if the presence index is disabled.
+	 */
+	public void putTile(SQLiteDbTileStore tStore, Tile tile, TilePresenceIndex tIndex) throws InterruptedException
+	{
+		queue(new Entry(tStore, tile, null, null, tIndex));
+	}
+
+	/**
+	 * Queues tile data to be written by {@link SQLiteDbTileStore#putTileData(byte[], TileAddress)}.
+	 * 
+	 * @param tIndex
+	 *          The presence index of the tiles source and zoom level, updated once the tile has been written. null if the presence index is disabled.
+	 */
+	public void putTileData(SQLiteDbTileStore tStore, byte[] tData, TileAddress tAddr, TilePresenceIndex tIndex) throws InterruptedException
+	{
+		queue(new Entry(tStore, null, tData, tAddr, tIndex));
+	}
+
+	protected void queue(Entry tEntry) throws InterruptedException
+	{
+		synchronized (this)
+		{
+			if (mStopped)
+				throw new IllegalStateException("the tile writer has stopped, " + toString());
+		}
+		mQueue.put(tEntry);
+		// counted only once it is in the queue, so flush() never waits for a tile which will not arrive. The writer may count it as written before.
+		synchronized (this)
+		{
+			++mQueued;
+		}
+	}
+
+	/**
+	 * Waits until all tiles queued before this call have been written.
+	 * 
+	 * @throws IllegalStateException
+	 *           if the writer thread has stopped before all these tiles have been written.
+	 */
+	public void flush() throws InterruptedException
+	{
+		synchronized (this)
+		{
+			long nQueued = mQueued;
+			while ((mWritten < nQueued) && !mStopped)
+				wait();
+			if (mWritten < nQueued)
+				throw new IllegalStateException("the tile writer has stopped, " + toString());
+		}
+	}
+
+	/**
+	 * This runs in the writer thread. A tile failing for any reason, even with an Error, is counted as written and logged, so the writer goes on with the
+	 * next tile and {@link #flush()} does not wait for it. If the thread ends nevertheless, it is marked as stopped and all waiting threads are woken up.
+	 */
+	protected void writeTiles()
+	{
+		List<Entry> tBatch = new ArrayList<>(MAX_BATCH);
+		try
+		{
+			while (true)
+			{
+				tBatch.add(mQueue.take());
+				mQueue.drainTo(tBatch, MAX_BATCH - 1);
+				int nErrors = 0;
+				for (Entry tEntry : tBatch)
+				{
+					boolean bWritten = false;
+					try
+					{
+						tEntry.write();
+						bWritten = true;
+					}
+					catch (Throwable e)
+					{
+						++nErrors;
+						sLog.error("writing tile to the tile store failed", e);
+					}
+					try
+					{
+						tEntry.setPresent(bWritten);
+					}
+					catch (Throwable e)
+					{
+						sLog.error("updating the tile presence index failed", e);
+					}
+				}
+				synchronized (this)
+				{
+					mWritten += tBatch.size();
+					mErrors += nErrors;
+					++mBatches;
+					notifyAll();
+				}
+				tBatch.clear();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			sLog.debug("tile writer stopped, " + toString());
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				mStopped = true;
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "tile write queue: queued=" + mQueued + ", written=" + mWritten + ", errors=" + mErrors + ", batches=" + mBatches + ", waiting=" + mQueue.size();
+	}
+}
@@ -51,6 +51,8 @@ import osmcb.program.bundle.MapCreationException;
 import osmcb.program.bundlecreators.ACBundleCreator;
 import osmcb.program.bundlecreators.IfBundleCreatorName;
 import osmcb.program.bundlecreators.IfMapTileWriter;
+import osmcb.program.bundlecreators.MapTileReader;
+import osmcb.program.bundlecreators.TilePresenceIndex;
 import osmcb.utilities.OSMCBUtilities;
 
 @IfBundleCreatorName(value = "TrekBuddy untared bundle", type = "UntaredAtlas")
@@ -118,6 +120,8 @@ public class BCTrekBuddy extends ACBundleCreator
 		createInfoFile();
 		createAtlasTbaFile(mBundle.getName());
 		sBundleProgress.finishBundle();
+		sLog.info(getTileImageCache().toString());
+		TilePresenceIndex.saveAll();
 		sLog.info("bundle='" + mBundle.getName() + "' finished");
 	}
 
@@ -240,61 +244,76 @@ public class BCTrekBuddy extends ACBundleCreator
 		ImageIO.setUseCache(false);
 		// byte[] emptyTileData = OSMCBUtilities.createEmptyTileData(mapSource);
 		// String tileType = mapSource.getTileImageType().getFileExt();
-		for (int x = mMap.getXMin(); x <= mMap.getXMax(); x++)
+		try (MapTileReader tReader = new MapTileReader(mMap, false, (x, y) -> findMapTile(x, y)))
 		{
-			tiley = 0;
-			for (int y = mMap.getYMin(); y <= mMap.getYMax(); y++)
+			for (int x = mMap.getXMin(); x <= mMap.getXMax(); x++)
 			{
-				BufferedImage tileImage = null;
-				Tile tile = null;
-				TileAddress tAddr = new TileAddress(x, y, mMap.getZoom());
-				// try to get the tile from the mtc
-				if ((tile = sTC.getTile(mMap.getMapSource(), tAddr)) != null)
+				Tile[] tTiles = tReader.nextRange();
+				tiley = 0;
+				for (int y = mMap.getYMin(); y <= mMap.getYMax(); y++)
 				{
-					if (tile.getTileState() == TileState.TS_LOADING)
-						sLog.warn("tried to load loading tile from mtc" + tile);
-					else
-						tileImage = tile.getImage();
-				}
-				if (tileImage == null)
-				{
-					// if the tile is not available in the mtc, get it from the tile store
-					tile = mMap.getMapSource().getNTileStore().getTile(tAddr);
-					if (tile.getTileState() == TileState.TS_LOADING)
-						sLog.warn("tried to load loading tile from tile store" + tile);
+					Tile tile = tTiles[tiley];
+					BufferedImage tileImage = (tile != null) ? tile.getImage() : null;
+					if (tileImage != null)
+					{
+						sLog.trace(String.format("Tile x=%d y=%d ", tilex, tiley));
+						// gc.drawImage(tileImage, tilex * MP2MapSpace.TECH_TILESIZE, tiley * MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE,
+						// null);
+					}
 					else
-						tileImage = tile.getImage();
-				}
-				if (tileImage != null)
-				{
-					sLog.trace(String.format("Tile x=%d y=%d ", tilex, tiley));
-					// gc.drawImage(tileImage, tilex * MP2MapSpace.TECH_TILESIZE, tiley * MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE,
-					// null);
-				}
-				else
-				{
-					sLog.warn(String.format("Tile x=%d y=%d not found in tile archive - creating error tile", tilex, tiley));
-					tile = new Tile(mMap.getMapSource(), tilex, tiley, mMap.getZoom());
-					tile.setErrorImage();
-					// gc.drawImage(tile.getImage(), tilex * MP2MapSpace.TECH_TILESIZE, tiley * MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE,
-					// MP2MapSpace.TECH_TILESIZE, null);
-				}
-				try
-				{
-					mapTileWriter.writeTile(tilex, tiley, tileType, tile);
-				}
-				catch (IOException e)
-				{
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					{
+						sLog.warn(String.format("Tile x=%d y=%d not found in tile archive - creating error tile", tilex, tiley));
+						tile = new Tile(mMap.getMapSource(), tilex, tiley, mMap.getZoom());
+						tile.setErrorImage();
+						// gc.drawImage(tile.getImage(), tilex * MP2MapSpace.TECH_TILESIZE, tiley * MP2MapSpace.TECH_TILESIZE, MP2MapSpace.TECH_TILESIZE,
+						// MP2MapSpace.TECH_TILESIZE, null);
+					}
+					try
+					{
+						mapTileWriter.writeTile(tilex, tiley, tileType, tile);
+					}
+					catch (IOException e)
+					{
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+					}
+					tiley++;
 				}
-				tiley++;
+				tilex++;
 			}
-			tilex++;
 		}
 		return img;
 	}
 
+	/**
+	 * This gets one tile of the map. It first tries the memory tile cache, then the tile store.
+	 * 
+	 * @return The tile or null, if the tile is not available.
+	 */
+	protected Tile findMapTile(int x, int y)
+	{
+		Tile tile = null;
+		TileAddress tAddr = new TileAddress(x, y, mMap.getZoom());
+		// try to get the tile from the mtc
+		if ((tile = getTileImageCache().getTile(mMap.getMapSource(), tAddr)) != null)
+		{
+			if (tile.getTileState() == TileState.TS_LOADING)
+				sLog.warn("tried to load loading tile from mtc" + tile);
+			else if (tile.getImage() != null)
+				return tile;
+		}
+		// if the tile is not available in the mtc, get it from the tile store
+		tile = getStoreTile(mMap, tAddr);
+		if (tile == null)
+			return null;
+		if (tile.getTileState() == TileState.TS_LOADING)
+		{
+			sLog.warn("tried to load loading tile from tile store" + tile);
+			return null;
+		}
+		return (tile.getImage() != null) ? tile : null;
+	}
+
 	protected void createTiles() throws InterruptedException, MapCreationException
 	{
 		int tilex = 0;
@@ -866,6 +866,42 @@ public class OSMCBUtilities
 		return 0;
 	}
 
+	/**
+	 * Calculates a 64 bit FNV-1a hash over the data, e.g. the encoded image data of a tile. This is used to recognize tiles with identical content.
+	 * 
+	 * @param data
+	 *          The data to be hashed.
+	 * @return The hash value
+	 */
+	public static long contentHash(byte[] data)
+	{
+		long hash = 0xCBF29CE484222325L;
+		for (byte b : data)
+		{
+			hash ^= (b & 0xFF);
+			hash *= 0x100000001B3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Calculates a 64 bit FNV-1a hash over pixel values, one int at a time.
+	 * 
+	 * @param pixels
+	 *          The packed pixel values.
+	 * @return The hash value
+	 */
+	public static long contentHash(int[] pixels)
+	{
+		long hash = 0xCBF29CE484222325L;
+		for (int p : pixels)
+		{
+			hash ^= (p & 0xFFFFFFFFL);
+			hash *= 0x100000001B3L;
+		}
+		return hash;
+	}
+
 	/**
 	 * @param revsision
 	 *          SVN revision string like <code>"1223"</code>, <code>"1224M"</code> or <code>"1616:1622M"</code>
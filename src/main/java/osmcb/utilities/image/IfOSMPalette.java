@@ -1,5 +1,7 @@
 package osmcb.utilities.image;
 
+import java.awt.image.BufferedImage;
+
 public interface IfOSMPalette
 {
 	/**
@@ -23,10 +25,145 @@ public interface IfOSMPalette
 	 */
 	public abstract int put(OSMColor tCol);
 
+	/**
+	 * places nCnt pixels of the same color in the palette.
+	 * 
+	 * @param tCol
+	 * @param nCnt
+	 *          The number of pixels.
+	 */
+	public default void put(OSMColor tCol, int nCnt)
+	{
+		for (int nP = 0; nP < nCnt; nP++)
+			put(tCol);
+	}
+
+	/**
+	 * places all pixels of the image in the palette. This may be called several times, e.g. once for each tile row of a map, before
+	 * {@link #finishPalette()}.
+	 */
+	public default void addImage(BufferedImage img)
+	{
+		int nWidth = img.getWidth();
+		int[] tRow = new int[nWidth];
+		for (int y = 0; y < img.getHeight(); ++y)
+		{
+			img.getRGB(0, y, nWidth, 1, tRow, 0, nWidth);
+			putRow(tRow, 0, nWidth);
+		}
+	}
+
+	/**
+	 * places a row of pixels in the palette. The alpha values are ignored.
+	 * This default adds each run of equal pixels with one {@link #put(OSMColor, int)}. Implementations counting in an {@link OSMColorHistogram} override it to
+	 * avoid the OSMColor per run.
+	 * 
+	 * @param tARGB
+	 *          The pixels as packed (a)rgb values.
+	 * @param nOff
+	 *          The first pixel in tARGB.
+	 * @param nLen
+	 *          The number of pixels.
+	 */
+	public default void putRow(int[] tARGB, int nOff, int nLen)
+	{
+		OSMColorHistogram.forEachRun(tARGB, nOff, nLen, (nRGB, nCnt) -> put(new OSMColor(nRGB), nCnt));
+	}
+
+	/**
+	 * places all colors of a histogram in the palette, e.g. the cached histogram of a tile. This may be called several times before {@link #finishPalette()}.
+	 */
+	public default void addHistogram(OSMColorHistogram tHist)
+	{
+		for (int nE = 0; nE < tHist.size(); nE++)
+			put(new OSMColor(tHist.getRGB(nE)), tHist.getIntCount(nE));
+	}
+
+	/**
+	 * Lets {@link #addImage(BufferedImage)} count only one pixel per cell of nStep x nStep pixels, see {@link OSMHistogramCounter#sample(BufferedImage, int)}.
+	 * This has to be called before the first image is added. Palettes not supporting sampled histograms ignore it.
+	 * 
+	 * @param nStep
+	 *          The edge length of the cells, 1 counts all pixels.
+	 */
+	public default void setSampleStep(int nStep)
+	{
+	}
+
+	/**
+	 * completes the palette after all pixels have been placed. Palettes created complete from an image do not need this.
+	 */
+	public default void finishPalette()
+	{
+	}
+
 	/**
 	 * 
 	 * @param tColor
 	 * @return The index in the final color palette
 	 */
 	public abstract int getPIdx(OSMColor tColor);
+
+	/**
+	 * Looks up the palette indices of all pixels in tARGB.
+	 * 
+	 * @param tARGB
+	 *          The pixels as packed (a)rgb values.
+	 * @param tIdx
+	 *          Receives the palette index of each pixel, it must be at least as long as tARGB.
+	 */
+	public default void mapRow(int[] tARGB, byte[] tIdx)
+	{
+		mapRow(tARGB, 0, tARGB.length, tIdx);
+	}
+
+	/**
+	 * Looks up the palette indices of a row of pixels. Only pixels differing from their predecessor are looked up. Like getPIdx(int) this may be called
+	 * concurrently once the palette is finished.
+	 * 
+	 * @param tARGB
+	 *          The pixels as packed (a)rgb values.
+	 * @param nOff
+	 *          The first pixel in tARGB.
+	 * @param nLen
+	 *          The number of pixels.
+	 * @param tIdx
+	 *          Receives the palette index of pixel nOff + i at tIdx[i].
+	 */
+	public default void mapRow(int[] tARGB, int nOff, int nLen, byte[] tIdx)
+	{
+		int nLastRGB = 0;
+		byte nPIdx = 0;
+		for (int nX = 0; nX < nLen; nX++)
+		{
+			int nRGB = tARGB[nOff + nX];
+			if ((nX == 0) || (nRGB != nLastRGB))
+			{
+				nLastRGB = nRGB;
+				nPIdx = (byte) getPIdx(nRGB);
+			}
+			tIdx[nX] = nPIdx;
+		}
+	}
+
+	/**
+	 * @return The number of entries in the final palette, including the unused index 0. This determines the bit depth of the kap-file.
+	 */
+	public default int getPalColors()
+	{
+		return 128;
+	}
+
+	/**
+	 * This looks up a packed RGB value as found in an int based raster. The alpha value is ignored.
+	 * Implementations should override this to avoid the creation of an OSMColor per lookup.
+	 * 
+	 * @param nRGB
+	 *          The packed (A)RGB value.
+	 * @return The index in the final color palette
+	 */
+	public default int getPIdx(int nRGB)
+	{
+		return getPIdx(new OSMColor(nRGB));
+	}
 }
\ No newline at end of file
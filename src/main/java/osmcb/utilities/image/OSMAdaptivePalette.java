@@ -1,7 +1,9 @@
 package osmcb.utilities.image;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -29,6 +31,11 @@ public class OSMAdaptivePalette implements IfOSMPalette
 	 * It contains one entry for each color found in the image.
 	 */
 	private OSMCBColorMap mColorsHM = new OSMCBColorMap();
+	/**
+	 * The rgb values of the final palette and their entries, used to find the nearest color for colors not in mColorsHM. Created at the first such color.
+	 */
+	private int[] mNearestRGB = null;
+	private ColorInfo[] mNearestCI = null;
 
 	/**
 	 * Supposedly the color IDs start with 1 in bsb/kap format.
@@ -126,13 +133,9 @@ public class OSMAdaptivePalette implements IfOSMPalette
 			// mColorsHM.put(new OSMColor(211, 215, 202), new ColorInfo(1987000000));
 			// mColorsHM.put(new OSMColor(149, 197, 137), new ColorInfo(1986000000));
 			// mColorsHM.put(new OSMColor(213, 224, 220), new ColorInfo(1985000000));
-			for (int y = 0; y < img.getHeight(); ++y)
-			{
-				for (int x = 0; x < img.getWidth(); ++x)
-				{
-					put(new OSMColor(img.getRGB(x, y)));
-				}
-			}
+			OSMColorHistogram tHist = OSMHistogramCounter.sample(img, 1);
+			for (int nE = 0; nE < tHist.size(); nE++)
+				mColorsHM.add(new OSMColor(tHist.getRGB(nE)), tHist.getIntCount(nE));
 			log.debug("Palette[" + mColorsHM.size() + "," + mColorsHM.getMColorCnt() + "] after put()");
 			// sLog.debug("Colors:" + toString());
 
@@ -183,7 +186,7 @@ public class OSMAdaptivePalette implements IfOSMPalette
 					Map.Entry<OSMColor, ColorInfo> tSPE = iSrcColor.next();
 					if (tSPE != tPE)
 					{
-						if ((tSPE.getValue().getCount() > 0) && (tPE.getKey().qDiff(tSPE.getKey()) < 17))
+						if ((tSPE.getValue().getCount() > 0) && (OSMColor.qDiff(tPE.getKey().getRGB(), tSPE.getKey().getRGB()) < 17))
 						{
 							// map the source color to the target
 							// tPE.getValue().incCount(tSPE.getValue().setMColor(tPE.getKey()));
@@ -340,7 +343,7 @@ public class OSMAdaptivePalette implements IfOSMPalette
 					Map.Entry<OSMColor, ColorInfo> tSPE = iSrcColor.next();
 					if ((tSPE != tPE) && (tSPE.getValue().mMColor == null))
 					{
-						dNewDiff = tSrcColor.oDist(tSPE.getKey());
+						dNewDiff = OSMColor.oDist(tSrcColor.getRGB(), tSPE.getKey().getRGB());
 						if (dNewDiff < dDist)
 						{
 							tMPE = tSPE;
@@ -451,14 +454,49 @@ public class OSMAdaptivePalette implements IfOSMPalette
 	@Override
 	public int put(OSMColor tCol)
 	{
+		mNearestRGB = null;
 		int nCnt = mColorsHM.add(tCol);
 		return nCnt;
 	}
 
+	@Override
+	public void put(OSMColor tCol, int nCnt)
+	{
+		mNearestRGB = null;
+		mColorsHM.add(tCol, nCnt);
+	}
+
 	@Override
 	public int getPIdx(OSMColor tColor)
 	{
-		int nIdx = mColorsHM.get(tColor).getPIdx();
+		ColorInfo tCI = mColorsHM.get(tColor);
+		if (tCI == null)
+			tCI = findNearest(tColor);
+		int nIdx = tCI.getPIdx();
 		return nIdx;
 	}
+
+	/**
+	 * Colors not in the map image are mapped to the nearest color used in the final palette.
+	 */
+	private synchronized ColorInfo findNearest(OSMColor tColor)
+	{
+		if (mNearestRGB == null)
+		{
+			List<Map.Entry<OSMColor, ColorInfo>> tEntries = new ArrayList<>();
+			for (Map.Entry<OSMColor, ColorInfo> tPE : mColorsHM.entrySet())
+			{
+				if (tPE.getValue().getMColor() == null)
+					tEntries.add(tPE);
+			}
+			mNearestRGB = new int[tEntries.size()];
+			mNearestCI = new ColorInfo[tEntries.size()];
+			for (int nE = 0; nE < tEntries.size(); nE++)
+			{
+				mNearestRGB[nE] = tEntries.get(nE).getKey().getRGB();
+				mNearestCI[nE] = tEntries.get(nE).getValue();
+			}
+		}
+		return mNearestCI[OSMColor.nearest(tColor.getRGB(), mNearestRGB)];
+	}
 }
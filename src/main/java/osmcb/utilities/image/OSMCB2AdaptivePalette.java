@@ -155,32 +155,10 @@ public class OSMCB2AdaptivePalette implements IfOSMPalette
 			addPixel(new OSMColor(164, 204, 149));
 			mStdColors = mColorsHM.size();
 
-			for (int y = 0; y < img.getHeight(); ++y)
-			{
-				int nCnt = 0;
-				OSMColor tCol = null;
-				OSMColor tNCol = null;
-				for (int x = 0; x < img.getWidth(); ++x)
-				{
-					mColorsHM.addPixels(new OSMColor(img.getRGB(x, y)), 1);
-					// if (x == 0)
-					// {
-					// tCol = new OSMColor(img.getRGB(x, y));
-					// nCnt++;
-					// }
-					// else
-					// {
-					// if ((tNCol = new OSMColor(img.getRGB(x, y))) == tCol)
-					// nCnt++;
-					// else
-					// {
-					// mColorsHM.addPixel(tCol, nCnt);
-					// tCol = tNCol;
-					// nCnt = 1;
-					// }
-					// }
-				}
-			}
+			// the colors are counted in parallel, only one OSMColor per distinct color is created
+			OSMColorHistogram tHist = OSMHistogramCounter.count(img);
+			for (int nE = 0; nE < tHist.size(); nE++)
+				mColorsHM.addPixels(new OSMColor(tHist.getRGB(nE)), tHist.getIntCount(nE));
 			log.info("Palette[" + mColorsHM.getUsedColors() + "] after put()");
 			if (log.isDebugEnabled())
 			{
@@ -231,7 +209,7 @@ public class OSMCB2AdaptivePalette implements IfOSMPalette
 			while (nSCol < mColorsHM.getUsedColors())
 			{
 				tSrcColor = mColorsHM.getColorByPIdx(nSCol);
-				if (tTgtColor.qDiff(tSrcColor) < 17)
+				if (OSMColor.qDiff(tTgtColor.getRGB(), tSrcColor.getRGB()) < 17)
 				{
 					if (log.isTraceEnabled())
 						log.trace("colors to map(r1): Src=" + tSrcColor.toStringRGB() + ", " + nSCol + ", Tgt=" + tTgtColor.toStringRGB() + ", " + nTCol);
@@ -321,7 +299,7 @@ public class OSMCB2AdaptivePalette implements IfOSMPalette
 			while (nSCol < mColorsHM.getUsedColors())
 			{
 				tSrcColor = mColorsHM.getColorByPIdx(nSCol);
-				if (tTgtColor.qDiff(tSrcColor) < 17)
+				if (OSMColor.qDiff(tTgtColor.getRGB(), tSrcColor.getRGB()) < 17)
 				{
 					if (log.isTraceEnabled())
 						log.trace("colors to map(r1): Src=" + tSrcColor.toStringRGB() + ", " + nSCol + " to Tgt=" + tTgtColor.toStringRGB() + ", " + nTCol);
@@ -406,7 +384,7 @@ public class OSMCB2AdaptivePalette implements IfOSMPalette
 				continue;
 
 			// check again if the src color is not already matched, if ok, test if it is a new best distance
-			if ((mColorsHM.getCnt(tSCID) > 0) && ((dNewDiff = tTCol.oDist(tSCol)) < dDiff) && (nTgtPIdx != nSrcPIdx))
+			if ((mColorsHM.getCnt(tSCID) > 0) && ((dNewDiff = OSMColor.oDist(tTCol.getRGB(), tSCol.getRGB())) < dDiff) && (nTgtPIdx != nSrcPIdx))
 			{
 				// remember the match source color
 				tMCol = mColorsHM.getColorByPIdx(nSrcPIdx);
@@ -459,7 +437,7 @@ public class OSMCB2AdaptivePalette implements IfOSMPalette
 				break;
 
 			// test if it is a new best distance
-			if ((dNewDiff = tSCol.oDist(tTCol)) < dDiff)
+			if ((dNewDiff = OSMColor.oDist(tSCol.getRGB(), tTCol.getRGB())) < dDiff)
 			{
 				// remember the matching target color
 				tMCol = mColorsHM.getColorByPIdx(nTgtPIdx);
@@ -493,6 +471,12 @@ public class OSMCB2AdaptivePalette implements IfOSMPalette
 		return nCID;
 	}
 
+	@Override
+	public void put(OSMColor tColor, int nCnt)
+	{
+		mColorsHM.addPixels(tColor, nCnt);
+	}
+
 	@Override
 	public int getPIdx(OSMColor tColor)
 	{
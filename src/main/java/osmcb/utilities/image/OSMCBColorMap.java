@@ -151,6 +151,24 @@ public class OSMCBColorMap extends HashMap<OSMColor, ColorInfo>
 		return this.size();
 	}
 
+	/**
+	 * Adds nCnt pixels of a color to the list.
+	 * 
+	 * @param tColor
+	 * @param nCnt
+	 * @return The number of colors in the list
+	 */
+	public int add(OSMColor tColor, int nCnt)
+	{
+		if (this.containsKey(tColor))
+			get(tColor).incCount(nCnt);
+		else
+		{
+			put(tColor, new ColorInfo(nCnt));
+		}
+		return this.size();
+	}
+
 	public int getCount(OSMColor tColor)
 	{
 		int nCount = 0;
@@ -98,6 +98,104 @@ public class OSMColor extends Color
 		return HSL2RGB(hue / 360.0, sat / 100.0, light / 100.0);
 	}
 
+	/**
+	 * The number of fractional bits of the fixed-point result of {@link #oDist(int, int)}.
+	 */
+	public static final int ODIST_FRACTION_BITS = 8;
+
+	/**
+	 * Calculates the quadratic difference between two packed rgb values. The alpha values are ignored.
+	 * 
+	 * @return The quadratic difference in the range [0..3*255*255]
+	 */
+	public static int qDiff(int nRGB1, int nRGB2)
+	{
+		int nDR = ((nRGB1 >> 16) & 0xFF) - ((nRGB2 >> 16) & 0xFF);
+		int nDG = ((nRGB1 >> 8) & 0xFF) - ((nRGB2 >> 8) & 0xFF);
+		int nDB = (nRGB1 & 0xFF) - (nRGB2 & 0xFF);
+		return nDR * nDR + nDG * nDG + nDB * nDB;
+	}
+
+	/**
+	 * Calculates the 'optical distance' of {@link #oDist(OSMColor)} between two packed rgb values in fixed-point arithmetic. The alpha values are ignored.
+	 * (2 - cos(a, a - b)) * |a - b| is evaluated as 2 * |a - b| - |a * (a - b)| / |a|, so there is one square root per distance and no division.
+	 * 
+	 * @param nRGB1
+	 *          The color to be compared, a in the formula.
+	 * @param nRGB2
+	 *          The 'other' color.
+	 * @return The optical distance times 2^ODIST_FRACTION_BITS.
+	 */
+	public static int oDist(int nRGB1, int nRGB2)
+	{
+		return oDist(nRGB1, nRGB2, invLength(nRGB1));
+	}
+
+	/**
+	 * Finds the palette entry with the least {@link #oDist(int, int)} to the color.
+	 * 
+	 * @param nRGB
+	 *          The packed rgb value to be matched.
+	 * @param tPalette
+	 *          The packed rgb values of the palette.
+	 * @return The index of the best match in tPalette.
+	 */
+	public static int nearest(int nRGB, int[] tPalette)
+	{
+		return nearest(nRGB, tPalette, 0, tPalette.length);
+	}
+
+	/**
+	 * Finds the palette entry in the range [nFrom, nTo) with the least {@link #oDist(int, int)} to the color. The length of the color is computed only once.
+	 * 
+	 * @return The index of the best match in tPalette, nFrom if the range is empty.
+	 */
+	public static int nearest(int nRGB, int[] tPalette, int nFrom, int nTo)
+	{
+		long nInvLen = invLength(nRGB);
+		int nBest = nFrom;
+		int nBestDist = Integer.MAX_VALUE;
+		for (int nIdx = nFrom; nIdx < nTo; nIdx++)
+		{
+			int nDist = oDist(nRGB, tPalette[nIdx], nInvLen);
+			if (nDist < nBestDist)
+			{
+				nBestDist = nDist;
+				nBest = nIdx;
+			}
+		}
+		return nBest;
+	}
+
+	/**
+	 * @return 2^32 / |rgb|, 0 for black.
+	 */
+	private static long invLength(int nRGB)
+	{
+		int nR = (nRGB >> 16) & 0xFF;
+		int nG = (nRGB >> 8) & 0xFF;
+		int nB = nRGB & 0xFF;
+		int nLen2 = nR * nR + nG * nG + nB * nB;
+		if (nLen2 == 0)
+			return 0;
+		return (long) ((1L << 32) / Math.sqrt(nLen2));
+	}
+
+	private static int oDist(int nRGB1, int nRGB2, long nInvLen)
+	{
+		int nR = (nRGB1 >> 16) & 0xFF;
+		int nG = (nRGB1 >> 8) & 0xFF;
+		int nB = nRGB1 & 0xFF;
+		int nDR = nR - ((nRGB2 >> 16) & 0xFF);
+		int nDG = nG - ((nRGB2 >> 8) & 0xFF);
+		int nDB = nB - (nRGB2 & 0xFF);
+		int nQ = nDR * nDR + nDG * nDG + nDB * nDB;
+		int nDot = Math.abs(nR * nDR + nG * nDG + nB * nDB);
+		// 2 * sqrt(q) in fixed-point, (int) Math.sqrt() is the exact integer square root for arguments below 2^52
+		int nTwoLen = (int) Math.sqrt((double) ((long) nQ << (2 * ODIST_FRACTION_BITS + 2)));
+		return nTwoLen - (int) ((nDot * nInvLen) >>> (32 - ODIST_FRACTION_BITS));
+	}
+
 	// instance data
 	protected Logger log;
 
@@ -155,10 +253,7 @@ public class OSMColor extends Color
 	 */
 	public long qDiff(OSMColor cCol)
 	{
-		int nDiff = (getBlue() - cCol.getBlue()) * (getBlue() - cCol.getBlue());
-		nDiff += (getGreen() - cCol.getGreen()) * (getGreen() - cCol.getGreen());
-		nDiff += (getRed() - cCol.getRed()) * (getRed() - cCol.getRed());
-		return nDiff;
+		return qDiff(getRGB(), cCol.getRGB());
 	}
 
 	/**
@@ -0,0 +1,245 @@
+package osmcb.utilities.image;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This counts the pixels per color of an image. It uses open addressing with linear probing on primitive arrays keyed by the packed rgb value, so counting a
+ * pixel does not create any objects. The alpha value is ignored.
+ * The colors are kept in the order they have been added first, entry 0 is the first color added. This order is stable while the histogram grows.
+ * The histogram is not synchronized, each thread has to use its own instance.
+ */
+public final class OSMColorHistogram
+{
+	private static final int EMPTY = -1;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * hash table: packed rgb value per slot and the entry index of that color
+	 */
+	private int[] mKeys;
+	private int[] mEntry;
+	private int mMask;
+	/**
+	 * entries in the order they have been added
+	 */
+	private int[] mRGB;
+	/**
+	 * The counts are long, a histogram merged from all tiles of a layer may count more than 2^31 pixels per color.
+	 */
+	private long[] mCount;
+	private int mSize = 0;
+
+	public OSMColorHistogram()
+	{
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param nCapacity
+	 *          The number of colors expected, the histogram grows if more colors are added.
+	 */
+	public OSMColorHistogram(int nCapacity)
+	{
+		int nCap = Integer.highestOneBit(Math.max(16, nCapacity - 1)) << 1;
+		mKeys = new int[nCap * 2];
+		mEntry = new int[nCap * 2];
+		mMask = mKeys.length - 1;
+		Arrays.fill(mKeys, EMPTY);
+		mRGB = new int[nCap];
+		mCount = new long[nCap];
+	}
+
+	/**
+	 * Reads a histogram written by {@link #write(DataOutput)}.
+	 */
+	public static OSMColorHistogram read(DataInput tIn) throws IOException
+	{
+		int nSize = tIn.readInt();
+		OSMColorHistogram tHist = new OSMColorHistogram(nSize);
+		for (int nE = 0; nE < nSize; nE++)
+		{
+			int nRGB = tIn.readInt();
+			tHist.add(nRGB, tIn.readLong());
+		}
+		return tHist;
+	}
+
+	/**
+	 * Writes the colors and their counts in the order of the entries.
+	 */
+	public void write(DataOutput tOut) throws IOException
+	{
+		tOut.writeInt(mSize);
+		for (int nE = 0; nE < mSize; nE++)
+		{
+			tOut.writeInt(mRGB[nE]);
+			tOut.writeLong(mCount[nE]);
+		}
+	}
+
+	private static int hash(int nKey)
+	{
+		int nH = nKey * 0x9E3779B9;
+		return nH ^ (nH >>> 16);
+	}
+
+	/**
+	 * Adds nCnt pixels of the color nRGB.
+	 *
+	 * @return The entry index of the color.
+	 */
+	public int add(int nRGB, long nCnt)
+	{
+		int nKey = nRGB & 0xFFFFFF;
+		int nSlot = hash(nKey) & mMask;
+		int nTst;
+		while ((nTst = mKeys[nSlot]) != EMPTY)
+		{
+			if (nTst == nKey)
+			{
+				int nE = mEntry[nSlot];
+				mCount[nE] += nCnt;
+				return nE;
+			}
+			nSlot = (nSlot + 1) & mMask;
+		}
+		if (mSize == mRGB.length)
+		{
+			grow();
+			return add(nRGB, nCnt);
+		}
+		int nE = mSize++;
+		mKeys[nSlot] = nKey;
+		mEntry[nSlot] = nE;
+		mRGB[nE] = nKey;
+		mCount[nE] = nCnt;
+		return nE;
+	}
+
+	/**
+	 * Adds a row of pixels. Runs of the same color, which are typical for map images, are counted with one table access.
+	 *
+	 * @param tARGB
+	 *          The pixels as packed (a)rgb values.
+	 * @param nOff
+	 *          The first pixel in tARGB.
+	 * @param nLen
+	 *          The number of pixels.
+	 */
+	public void addPixels(int[] tARGB, int nOff, int nLen)
+	{
+		forEachRun(tARGB, nOff, nLen, this::add);
+	}
+
+	/**
+	 * Receives the runs of equal pixels found by {@link OSMColorHistogram#forEachRun(int[], int, int, IfRunConsumer)}.
+	 */
+	public interface IfRunConsumer
+	{
+		/**
+		 * @param nRGB
+		 *          The packed rgb value of the run.
+		 * @param nCnt
+		 *          The number of pixels in the run.
+		 */
+		void run(int nRGB, int nCnt);
+	}
+
+	/**
+	 * Splits a row of pixels into runs of the same color, ignoring the alpha values. This is shared by the histogram and the palettes.
+	 */
+	public static void forEachRun(int[] tARGB, int nOff, int nLen, IfRunConsumer tConsumer)
+	{
+		int nEnd = nOff + nLen;
+		int nX = nOff;
+		while (nX < nEnd)
+		{
+			int nRGB = tARGB[nX] & 0xFFFFFF;
+			int nRun = nX + 1;
+			while ((nRun < nEnd) && ((tARGB[nRun] & 0xFFFFFF) == nRGB))
+				++nRun;
+			tConsumer.run(nRGB, nRun - nX);
+			nX = nRun;
+		}
+	}
+
+	/**
+	 * Adds all colors of another histogram. Colors not yet known are appended in the order of tOther.
+	 */
+	public void merge(OSMColorHistogram tOther)
+	{
+		for (int nE = 0; nE < tOther.mSize; nE++)
+			add(tOther.mRGB[nE], tOther.mCount[nE]);
+	}
+
+	private void grow()
+	{
+		int nCap = mRGB.length * 2;
+		mRGB = Arrays.copyOf(mRGB, nCap);
+		mCount = Arrays.copyOf(mCount, nCap);
+		mKeys = new int[nCap * 2];
+		mEntry = new int[nCap * 2];
+		mMask = mKeys.length - 1;
+		Arrays.fill(mKeys, EMPTY);
+		for (int nE = 0; nE < mSize; nE++)
+		{
+			int nSlot = hash(mRGB[nE]) & mMask;
+			while (mKeys[nSlot] != EMPTY)
+				nSlot = (nSlot + 1) & mMask;
+			mKeys[nSlot] = mRGB[nE];
+			mEntry[nSlot] = nE;
+		}
+	}
+
+	/**
+	 * @return The entry index of the color or -1 if the color has not been added.
+	 */
+	public int indexOf(int nRGB)
+	{
+		int nKey = nRGB & 0xFFFFFF;
+		int nSlot = hash(nKey) & mMask;
+		int nTst;
+		while ((nTst = mKeys[nSlot]) != EMPTY)
+		{
+			if (nTst == nKey)
+				return mEntry[nSlot];
+			nSlot = (nSlot + 1) & mMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The packed rgb value of the entry.
+	 */
+	public int getRGB(int nEntry)
+	{
+		return mRGB[nEntry];
+	}
+
+	/**
+	 * @return The pixel count of the entry.
+	 */
+	public long getCount(int nEntry)
+	{
+		return mCount[nEntry];
+	}
+
+	/**
+	 * @return The pixel count of the entry, limited to Integer.MAX_VALUE for the palettes counting in int.
+	 */
+	public int getIntCount(int nEntry)
+	{
+		return (int) Math.min(mCount[nEntry], Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return The number of distinct colors.
+	 */
+	public int size()
+	{
+		return mSize;
+	}
+}
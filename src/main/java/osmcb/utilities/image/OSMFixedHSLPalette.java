@@ -2,6 +2,7 @@ package osmcb.utilities.image;
 
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.TreeMap;
 
@@ -297,7 +298,7 @@ public class OSMFixedHSLPalette implements IfOSMPalette
 			{
 				OSMPaletteEntry tSPE = mColorList.get(nSCol);
 
-				if (tTPE.getColor().qDiff(tSPE.getColor()) < 17)
+				if (OSMColor.qDiff(tTPE.getColor().getRGB(), tSPE.getColor().getRGB()) < 17)
 				{
 					// map(tTPE, tSPE);
 				}
@@ -509,11 +510,26 @@ public class OSMFixedHSLPalette implements IfOSMPalette
 		return nCnt;
 	}
 
+	/**
+	 * Each run of equal pixels is put once, the colors of the fixed palette are not weighted by usage.
+	 */
+	@Override
+	public void put(OSMColor tCol, int nCnt)
+	{
+		put(tCol);
+	}
+
 	@Override
 	public int getPIdx(OSMColor tColor)
 	{
 		return 0;
 	}
+
+	@Override
+	public void mapRow(int[] tARGB, int nOff, int nLen, byte[] tIdx)
+	{
+		Arrays.fill(tIdx, 0, nLen, (byte) 0);
+	}
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,138 @@
+package osmcb.utilities.image;
+
+import org.apache.log4j.Logger;
+
+import osmb.utilities.OSMBStrs;
+
+/**
+ * This palette is the union of the palettes of already indexed source images, e.g. tiles delivered as indexed png images, see {@link OSMPngPalette}.
+ * If the union does not exceed 127 colors, every pixel of the source images has an exact entry. So the palette is built without a histogram and without
+ * quantization, and a lookup is one access to the lookup table, no distance search.
+ * Colors not in the palette, which only occur if images not added to the palette are encoded with it, are mapped to the nearest entry.
+ */
+public class OSMIndexedPalette implements IfOSMPalette
+{
+	protected static Logger log = Logger.getLogger(OSMIndexedPalette.class);
+
+	public static final int MAX_COLORS = 127;
+
+	/**
+	 * The rgb values of the palette, index 0 is unused.
+	 */
+	private final int[] mPalRGB = new int[MAX_COLORS + 1];
+	private int mPaletteCnt = 1;
+	private OSMPaletteLUT mLUT = null;
+
+	/**
+	 * Adds all colors of a source palette which are not yet included.
+	 *
+	 * @param tARGB
+	 *          The colors of the source palette as packed (a)rgb values.
+	 * @return false if the union exceeds {@link #MAX_COLORS} colors. The palette must not be used then.
+	 */
+	public boolean addPalette(int[] tARGB)
+	{
+		for (int nRGB : tARGB)
+			if (!addColor(nRGB))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return false if the color is new and the palette is already full.
+	 */
+	protected boolean addColor(int nRGB)
+	{
+		nRGB &= 0xFFFFFF;
+		for (int nIdx = 1; nIdx < mPaletteCnt; nIdx++)
+			if (mPalRGB[nIdx] == nRGB)
+				return true;
+		if (mPaletteCnt > MAX_COLORS)
+			return false;
+		mPalRGB[mPaletteCnt++] = nRGB;
+		mLUT = null;
+		return true;
+	}
+
+	/**
+	 * Adds the color, the count is not needed for the union.
+	 */
+	@Override
+	public int put(OSMColor tCol)
+	{
+		if (!addColor(tCol.getRGB()))
+			log.warn("palette full, color " + tCol.toStringRGB() + " ignored");
+		return 1;
+	}
+
+	@Override
+	public void put(OSMColor tCol, int nCnt)
+	{
+		put(tCol);
+	}
+
+	/**
+	 * builds the lookup table.
+	 */
+	@Override
+	public void finishPalette()
+	{
+		int[] tPIdx = new int[mPaletteCnt];
+		for (int nIdx = 0; nIdx < mPaletteCnt; nIdx++)
+			tPIdx[nIdx] = nIdx;
+		mLUT = new OSMPaletteLUT(mPalRGB, tPIdx, mPaletteCnt);
+	}
+
+	/**
+	 * This creates a specific String in the format required by the BSB-KAP file format.
+	 * It ends with a 0x0D,0x0A sequence("\r\n").
+	 */
+	@Override
+	public String asBSBStr()
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		StringBuilder strPal = new StringBuilder();
+		for (int nCol = 1; nCol < mPaletteCnt; nCol++)
+			strPal.append("RGB/").append(nCol).append(",").append(new OSMColor(mPalRGB[nCol]).toStringRGB()).append("\r\n");
+		return strPal.toString();
+	}
+
+	/**
+	 * @return The number of entries in the final palette, including index 0.
+	 */
+	@Override
+	public int getPalColors()
+	{
+		return mPaletteCnt;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "\r\nIndexed palette: cnt=" + mPaletteCnt + "\r\n" + asBSBStr();
+	}
+
+	@Override
+	public int getPIdx(OSMColor tColor)
+	{
+		return getPIdx(tColor.getRGB());
+	}
+
+	/**
+	 * If the palette has not been finished yet, this is done now.
+	 */
+	@Override
+	public int getPIdx(int nRGB)
+	{
+		OSMPaletteLUT tLUT = mLUT;
+		if (tLUT == null)
+		{
+			finishPalette();
+			tLUT = mLUT;
+		}
+		int nPIdx = tLUT.get(nRGB);
+		if (nPIdx < 0)
+			nPIdx = OSMColor.nearest(nRGB & 0xFFFFFF, mPalRGB, 1, mPaletteCnt);
+		return nPIdx;
+	}
+}
@@ -0,0 +1,80 @@
+package osmcb.utilities.image;
+
+/**
+ * This is a read-only lookup table mapping packed rgb values to palette indices. It uses open addressing with linear probing on primitive arrays, so a lookup
+ * does not create any objects. The alpha value of the keys is ignored.
+ * The table is completely built by the constructor and is not modified afterwards, so it can be shared between threads.
+ */
+public final class OSMPaletteLUT
+{
+	private static final int EMPTY = -1;
+
+	private final int[] mKeys;
+	private final byte[] mIdx;
+	private final int mMask;
+	private final int mSize;
+
+	/**
+	 * @param tRGB
+	 *          The packed rgb values.
+	 * @param tPIdx
+	 *          The palette index for each rgb value, in the range [0..255].
+	 * @param nCnt
+	 *          The number of valid entries in tRGB and tPIdx.
+	 */
+	public OSMPaletteLUT(int[] tRGB, int[] tPIdx, int nCnt)
+	{
+		// keep the load factor at or below 0.5
+		int nCap = Integer.highestOneBit(Math.max(4, nCnt) * 2 - 1) << 1;
+		mKeys = new int[nCap];
+		mIdx = new byte[nCap];
+		mMask = nCap - 1;
+		java.util.Arrays.fill(mKeys, EMPTY);
+		int nSize = 0;
+		for (int nE = 0; nE < nCnt; nE++)
+		{
+			int nKey = tRGB[nE] & 0xFFFFFF;
+			int nSlot = hash(nKey) & mMask;
+			while ((mKeys[nSlot] != EMPTY) && (mKeys[nSlot] != nKey))
+				nSlot = (nSlot + 1) & mMask;
+			if (mKeys[nSlot] == EMPTY)
+				++nSize;
+			mKeys[nSlot] = nKey;
+			mIdx[nSlot] = (byte) tPIdx[nE];
+		}
+		mSize = nSize;
+	}
+
+	private static int hash(int nKey)
+	{
+		int nH = nKey * 0x9E3779B9;
+		return nH ^ (nH >>> 16);
+	}
+
+	/**
+	 * @param nRGB
+	 *          The packed (A)RGB value.
+	 * @return The palette index or -1 if the color is not in the table.
+	 */
+	public int get(int nRGB)
+	{
+		int nKey = nRGB & 0xFFFFFF;
+		int nSlot = hash(nKey) & mMask;
+		int nTst;
+		while ((nTst = mKeys[nSlot]) != EMPTY)
+		{
+			if (nTst == nKey)
+				return mIdx[nSlot] & 0xFF;
+			nSlot = (nSlot + 1) & mMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The number of colors in the table.
+	 */
+	public int size()
+	{
+		return mSize;
+	}
+}
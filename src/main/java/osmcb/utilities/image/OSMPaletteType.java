@@ -0,0 +1,31 @@
+package osmcb.utilities.image;
+
+/**
+ * The palette implementations selectable for the creation of KAP images.
+ */
+public enum OSMPaletteType
+{
+	/**
+	 * {@link OSMCB3AdaptivePalette}, the most used colors plus some standard colors. Its cost grows with the number of distinct colors in the image.
+	 */
+	ADAPTIVE, //
+	/**
+	 * {@link OSMWuPalette}, the Wu color quantizer. Its cost grows with the number of pixels in the image.
+	 */
+	WU;
+
+	/**
+	 * @return A new empty palette of this type. Pixels are added by {@link IfOSMPalette#addImage(java.awt.image.BufferedImage)}, it is completed by
+	 *         {@link IfOSMPalette#finishPalette()}.
+	 */
+	public IfOSMPalette createPalette()
+	{
+		switch (this)
+		{
+			case WU:
+				return new OSMWuPalette();
+			default:
+				return new OSMCB3AdaptivePalette();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package osmcb.utilities.image;
+
+/**
+ * This reads the palette of an indexed png image directly from its encoded data, without decoding the image. Only the chunks in front of the image data are
+ * parsed, so this is cheap compared to decoding.
+ * The palette entries are returned as the colors the pixels get when the image is drawn onto a fully transparent image: fully transparent entries become 0,
+ * opaque entries keep their rgb value. Images with partially transparent entries are not supported, because the result of drawing them depends on the
+ * blending.
+ */
+public final class OSMPngPalette
+{
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A };
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504C5445;
+	private static final int TRNS = 0x74524E53;
+	private static final int IDAT = 0x49444154;
+	private static final int COLOR_TYPE_INDEXED = 3;
+
+	private OSMPngPalette()
+	{
+	}
+
+	/**
+	 * @param tData
+	 *          The encoded image.
+	 * @return The palette as packed argb values, see the class description, or null if tData is not an indexed png image with a bit depth up to 8 and without
+	 *         partially transparent entries.
+	 */
+	public static int[] readPalette(byte[] tData)
+	{
+		if ((tData == null) || (tData.length < SIGNATURE.length))
+			return null;
+		for (int nB = 0; nB < SIGNATURE.length; nB++)
+			if (tData[nB] != SIGNATURE[nB])
+				return null;
+		int[] tPal = null;
+		int nPos = SIGNATURE.length;
+		boolean bIndexed = false;
+		while (nPos + 8 <= tData.length)
+		{
+			int nLen = readInt(tData, nPos);
+			int nType = readInt(tData, nPos + 4);
+			int nData = nPos + 8;
+			if ((nLen < 0) || (nData + nLen > tData.length))
+				return null;
+			if (nType == IHDR)
+			{
+				if (nLen < 13)
+					return null;
+				int nBitDepth = tData[nData + 8] & 0xFF;
+				bIndexed = ((tData[nData + 9] & 0xFF) == COLOR_TYPE_INDEXED) && (nBitDepth <= 8);
+				if (!bIndexed)
+					return null;
+			}
+			else if (nType == PLTE)
+			{
+				if (!bIndexed || (nLen % 3 != 0))
+					return null;
+				tPal = new int[nLen / 3];
+				for (int nE = 0; nE < tPal.length; nE++)
+				{
+					int nOff = nData + 3 * nE;
+					tPal[nE] = 0xFF000000 | ((tData[nOff] & 0xFF) << 16) | ((tData[nOff + 1] & 0xFF) << 8) | (tData[nOff + 2] & 0xFF);
+				}
+			}
+			else if (nType == TRNS)
+			{
+				if (tPal == null)
+					return null;
+				for (int nE = 0; (nE < nLen) && (nE < tPal.length); nE++)
+				{
+					int nAlpha = tData[nData + nE] & 0xFF;
+					if (nAlpha == 0)
+						tPal[nE] = 0;
+					else if (nAlpha != 0xFF)
+						return null;
+				}
+			}
+			else if (nType == IDAT)
+				break;
+			// skip the data and the crc
+			nPos = nData + nLen + 4;
+		}
+		return tPal;
+	}
+
+	private static int readInt(byte[] tData, int nPos)
+	{
+		return ((tData[nPos] & 0xFF) << 24) | ((tData[nPos + 1] & 0xFF) << 16) | ((tData[nPos + 2] & 0xFF) << 8) | (tData[nPos + 3] & 0xFF);
+	}
+}
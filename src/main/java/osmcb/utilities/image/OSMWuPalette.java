@@ -0,0 +1,490 @@
+package osmcb.utilities.image;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import osmb.utilities.OSMBStrs;
+
+/**
+ * This palette uses the color quantizer by Xiaolin Wu ("Efficient Statistical Computations for Optimal Color Quantization", Graphics Gems II).
+ * The pixels are counted in a histogram of 32x32x32 cells over the rgb cube, which also holds the sums of the color values and of their squares. The rgb cube
+ * is then split into 127 boxes, always cutting the box with the largest variance where the variance of the two parts is minimal. Each box gives one palette
+ * color, the mean of all pixels in the box.
+ * The cost of the palette grows with the number of pixels (one pass to count them) plus a constant for the cutting, independent of the number of distinct
+ * colors in the image. The palette index of a color is the box its cell belongs to, so a lookup is one table access.
+ */
+public class OSMWuPalette implements IfOSMPalette
+{
+	protected static Logger log = Logger.getLogger(OSMWuPalette.class);
+
+	private static final int SIDE = 33;
+	private static final int TABLE_SIZE = SIDE * SIDE * SIDE;
+	private static final int MAX_COLORS = 127;
+
+	private static final int RED = 2;
+	private static final int GREEN = 1;
+	private static final int BLUE = 0;
+
+	// 'helper' classes
+	private static class Box
+	{
+		private int mR0; // min value, exclusive
+		private int mR1; // max value, inclusive
+		private int mG0;
+		private int mG1;
+		private int mB0;
+		private int mB1;
+		private int mVol;
+	}
+
+	// instance data
+	/**
+	 * The moments of the histogram: the pixel count, the sums of the red, green and blue values and the sum of the squared values per cell. After
+	 * finishPalette() they are cumulated, the moments of a box are then found by inclusion-exclusion of eight entries.
+	 */
+	private long[] mWt = new long[TABLE_SIZE];
+	private long[] mMr = new long[TABLE_SIZE];
+	private long[] mMg = new long[TABLE_SIZE];
+	private long[] mMb = new long[TABLE_SIZE];
+	private double[] mM2 = new double[TABLE_SIZE];
+	/**
+	 * The palette index for each cell of the histogram.
+	 */
+	private byte[] mTag = null;
+	/**
+	 * The rgb values of the final palette, index 0 is unused.
+	 */
+	private int[] mPalRGB = null;
+	private int mPaletteCnt = MAX_COLORS + 1;
+	/**
+	 * The edge length of the cells sampled by addImage(), 1 counts all pixels.
+	 */
+	private int mSampleStep = 1;
+
+	/**
+	 * Creates an empty palette. Image data are added by {@link #addImage(BufferedImage)}, the palette is completed by {@link #finishPalette()}.
+	 */
+	public OSMWuPalette()
+	{
+		log = Logger.getLogger(this.getClass());
+	}
+
+	/**
+	 * Creates the palette of the given image.
+	 *
+	 * @param img
+	 *          - The image for which to create the palette.
+	 */
+	public OSMWuPalette(BufferedImage img)
+	{
+		this();
+		log.trace(OSMBStrs.RStr("START"));
+		addImage(img);
+		finishPalette();
+	}
+
+	private static int getIdx(int nR, int nG, int nB)
+	{
+		return (nR * SIDE + nG) * SIDE + nB;
+	}
+
+	private static int getCellIdx(int nRGB)
+	{
+		return getIdx(((nRGB >> 19) & 0x1F) + 1, ((nRGB >> 11) & 0x1F) + 1, ((nRGB >> 3) & 0x1F) + 1);
+	}
+
+	/**
+	 * Adds all pixels of the image to the histogram. This may be called several times, e.g. once for each tile row of a map.
+	 */
+	@Override
+	public void addImage(BufferedImage img)
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		addHistogram(OSMHistogramCounter.sample(img, mSampleStep));
+	}
+
+	@Override
+	public void addHistogram(OSMColorHistogram tHist)
+	{
+		for (int nE = 0; nE < tHist.size(); nE++)
+			add(tHist.getRGB(nE), tHist.getCount(nE));
+	}
+
+	@Override
+	public void setSampleStep(int nStep)
+	{
+		mSampleStep = nStep;
+	}
+
+	private void add(int nRGB, long nCnt)
+	{
+		if (mTag != null)
+			throw new IllegalStateException("colors added to a finished palette");
+		int nR = (nRGB >> 16) & 0xFF;
+		int nG = (nRGB >> 8) & 0xFF;
+		int nB = nRGB & 0xFF;
+		int nIdx = getCellIdx(nRGB);
+		mWt[nIdx] += nCnt;
+		mMr[nIdx] += (long) nR * nCnt;
+		mMg[nIdx] += (long) nG * nCnt;
+		mMb[nIdx] += (long) nB * nCnt;
+		mM2[nIdx] += (double) (nR * nR + nG * nG + nB * nB) * nCnt;
+	}
+
+	/**
+	 * Cuts the rgb cube into the boxes of the palette. This has to be called after all image data have been added and before the palette is used. Further calls
+	 * do nothing.
+	 */
+	@Override
+	public void finishPalette()
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		if (mTag != null)
+			return;
+		cumulateMoments();
+
+		Box[] tBoxes = new Box[MAX_COLORS];
+		double[] tVar = new double[MAX_COLORS];
+		tBoxes[0] = new Box();
+		tBoxes[0].mR1 = tBoxes[0].mG1 = tBoxes[0].mB1 = SIDE - 1;
+		tBoxes[0].mVol = (SIDE - 1) * (SIDE - 1) * (SIDE - 1);
+		int nBoxes = MAX_COLORS;
+		int nNext = 0;
+		for (int nBox = 1; nBox < MAX_COLORS; ++nBox)
+		{
+			tBoxes[nBox] = new Box();
+			if (cut(tBoxes[nNext], tBoxes[nBox]))
+			{
+				// volume test ensures we won't try to cut a box consisting of one cell
+				tVar[nNext] = (tBoxes[nNext].mVol > 1) ? getVariance(tBoxes[nNext]) : 0.0;
+				tVar[nBox] = (tBoxes[nBox].mVol > 1) ? getVariance(tBoxes[nBox]) : 0.0;
+			}
+			else
+			{
+				// don't try to split this box again
+				tVar[nNext] = 0.0;
+				--nBox;
+			}
+			nNext = 0;
+			double dMax = tVar[0];
+			for (int nTst = 1; nTst <= nBox; ++nTst)
+			{
+				if (tVar[nTst] > dMax)
+				{
+					dMax = tVar[nTst];
+					nNext = nTst;
+				}
+			}
+			if (dMax <= 0.0)
+			{
+				nBoxes = nBox + 1;
+				break;
+			}
+		}
+
+		// each box gives one palette color, index 0 stays unused
+		mTag = new byte[TABLE_SIZE];
+		mPalRGB = new int[nBoxes + 1];
+		for (int nBox = 0; nBox < nBoxes; ++nBox)
+		{
+			Box tBox = tBoxes[nBox];
+			for (int nR = tBox.mR0 + 1; nR <= tBox.mR1; ++nR)
+				for (int nG = tBox.mG0 + 1; nG <= tBox.mG1; ++nG)
+					for (int nB = tBox.mB0 + 1; nB <= tBox.mB1; ++nB)
+						mTag[getIdx(nR, nG, nB)] = (byte) (nBox + 1);
+			long nWeight = getVolume(tBox, mWt);
+			if (nWeight > 0)
+			{
+				int nR = (int) ((getVolume(tBox, mMr) + nWeight / 2) / nWeight);
+				int nG = (int) ((getVolume(tBox, mMg) + nWeight / 2) / nWeight);
+				int nB = (int) ((getVolume(tBox, mMb) + nWeight / 2) / nWeight);
+				mPalRGB[nBox + 1] = (nR << 16) | (nG << 8) | nB;
+			}
+		}
+		mPaletteCnt = nBoxes + 1;
+		log.debug("Palette[" + mPaletteCnt + "] with " + nBoxes + " boxes, pixels=" + mWt[TABLE_SIZE - 1]);
+
+		// the moments are not needed any more
+		mMr = mMg = mMb = null;
+		mM2 = null;
+	}
+
+	/**
+	 * Converts the histogram into cumulative moments, so that the moments of any box can be computed from eight entries.
+	 */
+	private void cumulateMoments()
+	{
+		long[] tArea = new long[SIDE];
+		long[] tAreaR = new long[SIDE];
+		long[] tAreaG = new long[SIDE];
+		long[] tAreaB = new long[SIDE];
+		double[] tArea2 = new double[SIDE];
+		for (int nR = 1; nR < SIDE; ++nR)
+		{
+			Arrays.fill(tArea, 0);
+			Arrays.fill(tAreaR, 0);
+			Arrays.fill(tAreaG, 0);
+			Arrays.fill(tAreaB, 0);
+			Arrays.fill(tArea2, 0.0);
+			for (int nG = 1; nG < SIDE; ++nG)
+			{
+				long nLine = 0, nLineR = 0, nLineG = 0, nLineB = 0;
+				double dLine2 = 0.0;
+				for (int nB = 1; nB < SIDE; ++nB)
+				{
+					int nIdx1 = getIdx(nR, nG, nB);
+					nLine += mWt[nIdx1];
+					nLineR += mMr[nIdx1];
+					nLineG += mMg[nIdx1];
+					nLineB += mMb[nIdx1];
+					dLine2 += mM2[nIdx1];
+					tArea[nB] += nLine;
+					tAreaR[nB] += nLineR;
+					tAreaG[nB] += nLineG;
+					tAreaB[nB] += nLineB;
+					tArea2[nB] += dLine2;
+					int nIdx2 = nIdx1 - SIDE * SIDE; // [r-1][g][b]
+					mWt[nIdx1] = mWt[nIdx2] + tArea[nB];
+					mMr[nIdx1] = mMr[nIdx2] + tAreaR[nB];
+					mMg[nIdx1] = mMg[nIdx2] + tAreaG[nB];
+					mMb[nIdx1] = mMb[nIdx2] + tAreaB[nB];
+					mM2[nIdx1] = mM2[nIdx2] + tArea2[nB];
+				}
+			}
+		}
+	}
+
+	private static long getVolume(Box tBox, long[] tMmt)
+	{
+		return tMmt[getIdx(tBox.mR1, tBox.mG1, tBox.mB1)] - tMmt[getIdx(tBox.mR1, tBox.mG1, tBox.mB0)] - tMmt[getIdx(tBox.mR1, tBox.mG0, tBox.mB1)]
+		    + tMmt[getIdx(tBox.mR1, tBox.mG0, tBox.mB0)] - tMmt[getIdx(tBox.mR0, tBox.mG1, tBox.mB1)] + tMmt[getIdx(tBox.mR0, tBox.mG1, tBox.mB0)]
+		    + tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB1)] - tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB0)];
+	}
+
+	private static double getVolume(Box tBox, double[] tMmt)
+	{
+		return tMmt[getIdx(tBox.mR1, tBox.mG1, tBox.mB1)] - tMmt[getIdx(tBox.mR1, tBox.mG1, tBox.mB0)] - tMmt[getIdx(tBox.mR1, tBox.mG0, tBox.mB1)]
+		    + tMmt[getIdx(tBox.mR1, tBox.mG0, tBox.mB0)] - tMmt[getIdx(tBox.mR0, tBox.mG1, tBox.mB1)] + tMmt[getIdx(tBox.mR0, tBox.mG1, tBox.mB0)]
+		    + tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB1)] - tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB0)];
+	}
+
+	/**
+	 * @return The part of the volume of the box not depending on the cut position in direction nDir.
+	 */
+	private static long getBottom(Box tBox, int nDir, long[] tMmt)
+	{
+		switch (nDir)
+		{
+			case RED:
+				return -tMmt[getIdx(tBox.mR0, tBox.mG1, tBox.mB1)] + tMmt[getIdx(tBox.mR0, tBox.mG1, tBox.mB0)] + tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB1)]
+				    - tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB0)];
+			case GREEN:
+				return -tMmt[getIdx(tBox.mR1, tBox.mG0, tBox.mB1)] + tMmt[getIdx(tBox.mR1, tBox.mG0, tBox.mB0)] + tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB1)]
+				    - tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB0)];
+			default:
+				return -tMmt[getIdx(tBox.mR1, tBox.mG1, tBox.mB0)] + tMmt[getIdx(tBox.mR1, tBox.mG0, tBox.mB0)] + tMmt[getIdx(tBox.mR0, tBox.mG1, tBox.mB0)]
+				    - tMmt[getIdx(tBox.mR0, tBox.mG0, tBox.mB0)];
+		}
+	}
+
+	/**
+	 * @return The part of the volume of the box depending on the cut position nPos in direction nDir.
+	 */
+	private static long getTop(Box tBox, int nDir, int nPos, long[] tMmt)
+	{
+		switch (nDir)
+		{
+			case RED:
+				return tMmt[getIdx(nPos, tBox.mG1, tBox.mB1)] - tMmt[getIdx(nPos, tBox.mG1, tBox.mB0)] - tMmt[getIdx(nPos, tBox.mG0, tBox.mB1)]
+				    + tMmt[getIdx(nPos, tBox.mG0, tBox.mB0)];
+			case GREEN:
+				return tMmt[getIdx(tBox.mR1, nPos, tBox.mB1)] - tMmt[getIdx(tBox.mR1, nPos, tBox.mB0)] - tMmt[getIdx(tBox.mR0, nPos, tBox.mB1)]
+				    + tMmt[getIdx(tBox.mR0, nPos, tBox.mB0)];
+			default:
+				return tMmt[getIdx(tBox.mR1, tBox.mG1, nPos)] - tMmt[getIdx(tBox.mR1, tBox.mG0, nPos)] - tMmt[getIdx(tBox.mR0, tBox.mG1, nPos)]
+				    + tMmt[getIdx(tBox.mR0, tBox.mG0, nPos)];
+		}
+	}
+
+	/**
+	 * @return The weighted variance of the box.
+	 */
+	private double getVariance(Box tBox)
+	{
+		double dR = getVolume(tBox, mMr);
+		double dG = getVolume(tBox, mMg);
+		double dB = getVolume(tBox, mMb);
+		double dM2 = getVolume(tBox, mM2);
+		return dM2 - (dR * dR + dG * dG + dB * dB) / getVolume(tBox, mWt);
+	}
+
+	/**
+	 * Finds the cut position in direction nDir minimizing the sum of the variances of both parts.
+	 *
+	 * @param tCut
+	 *          Receives the cut position, -1 if the box cannot be cut in this direction.
+	 * @return The value to be maximized, which is equivalent to the variance to be minimized.
+	 */
+	private double maximize(Box tBox, int nDir, int nFirst, int nLast, int[] tCut, long nWholeR, long nWholeG, long nWholeB, long nWholeW)
+	{
+		long nBaseR = getBottom(tBox, nDir, mMr);
+		long nBaseG = getBottom(tBox, nDir, mMg);
+		long nBaseB = getBottom(tBox, nDir, mMb);
+		long nBaseW = getBottom(tBox, nDir, mWt);
+		double dMax = 0.0;
+		tCut[0] = -1;
+		for (int nPos = nFirst; nPos < nLast; ++nPos)
+		{
+			double dHalfR = nBaseR + getTop(tBox, nDir, nPos, mMr);
+			double dHalfG = nBaseG + getTop(tBox, nDir, nPos, mMg);
+			double dHalfB = nBaseB + getTop(tBox, nDir, nPos, mMb);
+			double dHalfW = nBaseW + getTop(tBox, nDir, nPos, mWt);
+			// now half is the sum over the lower half of the box, if cut at nPos
+			if (dHalfW == 0)
+				continue; // subbox could be empty of pixels, never split into an empty box
+			double dTemp = (dHalfR * dHalfR + dHalfG * dHalfG + dHalfB * dHalfB) / dHalfW;
+			dHalfR = nWholeR - dHalfR;
+			dHalfG = nWholeG - dHalfG;
+			dHalfB = nWholeB - dHalfB;
+			dHalfW = nWholeW - dHalfW;
+			if (dHalfW == 0)
+				continue;
+			dTemp += (dHalfR * dHalfR + dHalfG * dHalfG + dHalfB * dHalfB) / dHalfW;
+			if (dTemp > dMax)
+			{
+				dMax = dTemp;
+				tCut[0] = nPos;
+			}
+		}
+		return dMax;
+	}
+
+	/**
+	 * Cuts tSet1 into two parts, the second part is returned in tSet2.
+	 *
+	 * @return false if the box cannot be cut.
+	 */
+	private boolean cut(Box tSet1, Box tSet2)
+	{
+		long nWholeR = getVolume(tSet1, mMr);
+		long nWholeG = getVolume(tSet1, mMg);
+		long nWholeB = getVolume(tSet1, mMb);
+		long nWholeW = getVolume(tSet1, mWt);
+		int[] tCutR = new int[1];
+		int[] tCutG = new int[1];
+		int[] tCutB = new int[1];
+		double dMaxR = maximize(tSet1, RED, tSet1.mR0 + 1, tSet1.mR1, tCutR, nWholeR, nWholeG, nWholeB, nWholeW);
+		double dMaxG = maximize(tSet1, GREEN, tSet1.mG0 + 1, tSet1.mG1, tCutG, nWholeR, nWholeG, nWholeB, nWholeW);
+		double dMaxB = maximize(tSet1, BLUE, tSet1.mB0 + 1, tSet1.mB1, tCutB, nWholeR, nWholeG, nWholeB, nWholeW);
+		int nDir;
+		if ((dMaxR >= dMaxG) && (dMaxR >= dMaxB))
+		{
+			nDir = RED;
+			if (tCutR[0] < 0)
+				return false; // can't split the box
+		}
+		else if ((dMaxG >= dMaxR) && (dMaxG >= dMaxB))
+			nDir = GREEN;
+		else
+			nDir = BLUE;
+
+		tSet2.mR1 = tSet1.mR1;
+		tSet2.mG1 = tSet1.mG1;
+		tSet2.mB1 = tSet1.mB1;
+		switch (nDir)
+		{
+			case RED:
+				tSet2.mR0 = tSet1.mR1 = tCutR[0];
+				tSet2.mG0 = tSet1.mG0;
+				tSet2.mB0 = tSet1.mB0;
+				break;
+			case GREEN:
+				tSet2.mG0 = tSet1.mG1 = tCutG[0];
+				tSet2.mR0 = tSet1.mR0;
+				tSet2.mB0 = tSet1.mB0;
+				break;
+			default:
+				tSet2.mB0 = tSet1.mB1 = tCutB[0];
+				tSet2.mR0 = tSet1.mR0;
+				tSet2.mG0 = tSet1.mG0;
+				break;
+		}
+		tSet1.mVol = (tSet1.mR1 - tSet1.mR0) * (tSet1.mG1 - tSet1.mG0) * (tSet1.mB1 - tSet1.mB0);
+		tSet2.mVol = (tSet2.mR1 - tSet2.mR0) * (tSet2.mG1 - tSet2.mG0) * (tSet2.mB1 - tSet2.mB0);
+		return true;
+	}
+
+	@Override
+	public int put(OSMColor tCol)
+	{
+		add(tCol.getRGB(), 1);
+		return 1;
+	}
+
+	@Override
+	public void put(OSMColor tColor, int nCnt)
+	{
+		add(tColor.getRGB(), nCnt);
+	}
+
+	/**
+	 * This creates a specific String in the format required by the BSB-KAP file format.
+	 * It ends with a 0x0D,0x0A sequence("\r\n").
+	 */
+	@Override
+	public String asBSBStr()
+	{
+		log.trace(OSMBStrs.RStr("START"));
+		if (mPalRGB == null)
+			finishPalette();
+		StringBuilder strPal = new StringBuilder();
+		for (int nCol = 1; nCol < mPaletteCnt; nCol++)
+			strPal.append("RGB/").append(nCol).append(",").append(new OSMColor(mPalRGB[nCol]).toStringRGB()).append("\r\n");
+		return strPal.toString();
+	}
+
+	/**
+	 * @return The number of entries in the final palette, including index 0.
+	 */
+	@Override
+	public int getPalColors()
+	{
+		return mPaletteCnt;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (mPalRGB == null)
+			return "\r\nWu palette, not finished\r\n";
+		return "\r\nWu palette: cnt=" + mPaletteCnt + "\r\n" + asBSBStr();
+	}
+
+	@Override
+	public int getPIdx(OSMColor tColor)
+	{
+		return getPIdx(tColor.getRGB());
+	}
+
+	/**
+	 * The palette index is the box the histogram cell of the color belongs to. If the palette has not been finished yet, this is done now.
+	 */
+	@Override
+	public int getPIdx(int nRGB)
+	{
+		if (mTag == null)
+			finishPalette();
+		return mTag[getCellIdx(nRGB)];
+	}
+
+	@Override
+	public void mapRow(int[] tARGB, int nOff, int nLen, byte[] tIdx)
+	{
+		if (mTag == null)
+			finishPalette();
+		for (int nX = 0; nX < nLen; nX++)
+			tIdx[nX] = mTag[getCellIdx(tARGB[nOff + nX])];
+	}
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import osmcb.utilities.image.OSMIndexedPalette;
+
+/**
+ * Round trip tests of the BSB run length encoding. The scan lines written by {@link KAPLineEncoder} are decoded as a BSB reader does and compared with the
+ * runs put in.
+ */
+public class KAPLineEncoderTest extends TestCase
+{
+	protected static final int[] LINES = { 0, 1, 127, 128, 255, 16383, 16384, 2097151, 2097152 };
+
+	/**
+	 * @return A palette with exactly 2^nDepth entries including index 0, so the encoder chooses nDepth.
+	 */
+	protected static OSMIndexedPalette createPalette(int nDepth)
+	{
+		OSMIndexedPalette tPal = new OSMIndexedPalette();
+		int[] tRGB = new int[(1 << nDepth) - 1];
+		for (int nIdx = 0; nIdx < tRGB.length; nIdx++)
+			tRGB[nIdx] = getColor(nIdx + 1);
+		assertTrue(tPal.addPalette(tRGB));
+		tPal.finishPalette();
+		return tPal;
+	}
+
+	protected static int getColor(int nIdx)
+	{
+		return 0xFF000000 | (nIdx * 0x010203);
+	}
+
+	/**
+	 * Decodes one scan line.
+	 * 
+	 * @param tRuns
+	 *          Receives the runs as pairs of palette index and run length.
+	 * @return The line number.
+	 */
+	protected static int decodeLine(byte[] tBuf, int nLen, int nDepth, List<int[]> tRuns)
+	{
+		int nShift = 7 - nDepth;
+		int nMask = (1 << nShift) - 1;
+		int nPos = 0;
+		int nLine = 0;
+		int nByte;
+		do
+		{
+			nByte = tBuf[nPos++] & 0xFF;
+			nLine = (nLine << 7) | (nByte & 0x7F);
+		}
+		while ((nByte & 0x80) != 0);
+		while ((nByte = tBuf[nPos++] & 0xFF) != 0)
+		{
+			int nIdx = (nByte & 0x7F) >> nShift;
+			int nCnt = nByte & nMask;
+			while ((nByte & 0x80) != 0)
+			{
+				nByte = tBuf[nPos++] & 0xFF;
+				nCnt = (nCnt << 7) | (nByte & 0x7F);
+			}
+			tRuns.add(new int[] { nIdx, nCnt + 1 });
+		}
+		assertEquals("line end marker is the last byte", nLen, nPos);
+		return nLine;
+	}
+
+	public void testDepth()
+	{
+		for (int nDepth = 1; nDepth <= 7; nDepth++)
+			assertEquals(nDepth, new KAPLineEncoder(createPalette(nDepth), 16).getDepth());
+	}
+
+	/**
+	 * Runs of one pixel, runs at the limit of the first byte, long runs and index 0 at all depths and with line numbers of one to four bytes.
+	 */
+	public void testRunsRoundTrip()
+	{
+		for (int nDepth = 1; nDepth <= 7; nDepth++)
+		{
+			int nMaxIdx = (1 << nDepth) - 1;
+			int nMaxCnt = 1 << (7 - nDepth);
+			int[] tCounts = { 1, 2, nMaxCnt, nMaxCnt + 1, 127, 128, 129, 256, 5000, 16384, 70000 };
+			List<int[]> tIn = new ArrayList<>();
+			int nWidth = 0;
+			for (int nC = 0; nC < tCounts.length; nC++)
+			{
+				for (int nIdx : new int[] { 0, nMaxIdx, nC % (nMaxIdx + 1) })
+				{
+					// neighbouring runs of the same index would be merged
+					if (!tIn.isEmpty() && (tIn.get(tIn.size() - 1)[0] == nIdx))
+						continue;
+					tIn.add(new int[] { nIdx, tCounts[nC] });
+					nWidth += tCounts[nC];
+				}
+			}
+			KAPLineEncoder tEnc = new KAPLineEncoder(createPalette(nDepth), nWidth);
+			for (int nLine : LINES)
+			{
+				tEnc.startLine(nLine);
+				for (int[] tRun : tIn)
+					tEnc.addRun(tRun[0], tRun[1]);
+				int nLen = tEnc.endLine();
+				List<int[]> tOut = new ArrayList<>();
+				assertEquals(nLine, decodeLine(tEnc.getBuffer(), nLen, nDepth, tOut));
+				assertEquals("depth " + nDepth + " runs", tIn.size(), tOut.size());
+				for (int nR = 0; nR < tIn.size(); nR++)
+				{
+					assertEquals("depth " + nDepth + " run " + nR + " index", tIn.get(nR)[0], tOut.get(nR)[0]);
+					assertEquals("depth " + nDepth + " run " + nR + " length", tIn.get(nR)[1], tOut.get(nR)[1]);
+				}
+			}
+			assertEquals(0, tEnc.getErrors());
+		}
+	}
+
+	/**
+	 * A one pixel run is one byte if it is not zero, index 0 gets a leading continuation byte, so it is not taken as line end marker.
+	 */
+	public void testSinglePixelRuns()
+	{
+		for (int nDepth = 1; nDepth <= 7; nDepth++)
+		{
+			KAPLineEncoder tEnc = new KAPLineEncoder(createPalette(nDepth), 4);
+			tEnc.startLine(5);
+			tEnc.addRun(1, 1);
+			tEnc.addRun(0, 1);
+			int nLen = tEnc.endLine();
+			byte[] tBuf = tEnc.getBuffer();
+			assertEquals(5, nLen);
+			assertEquals(5, tBuf[0]);
+			assertEquals(1 << (7 - nDepth), tBuf[1]);
+			assertEquals((byte) 0x80, tBuf[2]);
+			assertEquals(0, tBuf[3]);
+			assertEquals(0, tBuf[4]);
+		}
+	}
+
+	/**
+	 * Encoding rows of pixels maps them through the palette and gives the same runs.
+	 */
+	public void testPixelsRoundTrip()
+	{
+		for (int nDepth = 1; nDepth <= 7; nDepth++)
+		{
+			int nMaxIdx = (1 << nDepth) - 1;
+			int nWidth = 3000;
+			int[] tPixels = new int[nWidth];
+			int[] tIdx = new int[nWidth];
+			for (int nX = 0; nX < nWidth; nX++)
+			{
+				// runs of growing length, up to 300 pixels
+				tIdx[nX] = 1 + ((int) Math.sqrt(nX * 30) % nMaxIdx);
+				tPixels[nX] = getColor(tIdx[nX]);
+			}
+			KAPLineEncoder tEnc = new KAPLineEncoder(createPalette(nDepth), nWidth);
+			int nLen = tEnc.encodeLine(tPixels, 0, nWidth, 200);
+			List<int[]> tOut = new ArrayList<>();
+			assertEquals(200, decodeLine(tEnc.getBuffer(), nLen, nDepth, tOut));
+			int nX = 0;
+			for (int[] tRun : tOut)
+			{
+				for (int nP = 0; nP < tRun[1]; nP++)
+					assertEquals("depth " + nDepth + " pixel " + (nX + nP), tIdx[nX + nP], tRun[0]);
+				nX += tRun[1];
+			}
+			assertEquals(nWidth, nX);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators.KAPImages;
+
+import junit.framework.TestCase;
+import osmcb.utilities.image.OSMIndexedPalette;
+
+public class KAPTileRunCacheTest extends TestCase
+{
+	protected static KAPTileRuns createRuns(int nRuns)
+	{
+		return KAPTileRuns.createUniform(1, 256, nRuns);
+	}
+
+	/**
+	 * The runs are found only for the same content hash and the same palette instance.
+	 */
+	public void testKey()
+	{
+		KAPTileRunCache tCache = new KAPTileRunCache(1000);
+		OSMIndexedPalette tPal1 = new OSMIndexedPalette();
+		OSMIndexedPalette tPal2 = new OSMIndexedPalette();
+		KAPTileRuns tRuns = createRuns(1);
+		tCache.put(0x123456789L, tPal1, tRuns);
+		assertSame(tRuns, tCache.get(0x123456789L, tPal1));
+		assertNull(tCache.get(0x123456789L, tPal2));
+		assertNull(tCache.get(0x123456788L, tPal1));
+
+		// hashes differing only in the upper half give the same hashCode of the key, but are different keys
+		KAPTileRuns tRuns2 = createRuns(1);
+		tCache.put(0x100000001L, tPal1, tRuns2);
+		assertNull(tCache.get(0L, tPal1));
+		tCache.put(0L, tPal1, tRuns);
+		assertSame(tRuns2, tCache.get(0x100000001L, tPal1));
+		assertSame(tRuns, tCache.get(0L, tPal1));
+		assertSame(tRuns2, tCache.get(0x100000001L, tPal1));
+		assertEquals(new KAPTileRunCache.Key(5, 1).hashCode(), new KAPTileRunCache.Key(5, 1).hashCode());
+		assertEquals(new KAPTileRunCache.Key(5, 1), new KAPTileRunCache.Key(5, 1));
+		assertFalse(new KAPTileRunCache.Key(5, 1).equals(new KAPTileRunCache.Key(5, 2)));
+	}
+
+	/**
+	 * The cache is limited by the number of runs, the least recently used tiles are dropped first.
+	 */
+	public void testEviction()
+	{
+		KAPTileRunCache tCache = new KAPTileRunCache(100);
+		OSMIndexedPalette tPal = new OSMIndexedPalette();
+		tCache.put(1, tPal, createRuns(30));
+		tCache.put(2, tPal, createRuns(30));
+		tCache.put(3, tPal, createRuns(30));
+		assertNotNull(tCache.get(1, tPal));
+		tCache.put(4, tPal, createRuns(30));
+		assertNull(tCache.get(2, tPal));
+		assertNotNull(tCache.get(1, tPal));
+		assertNotNull(tCache.get(3, tPal));
+		assertNotNull(tCache.get(4, tPal));
+		assertEquals(90, tCache.mRuns);
+
+		// replacing an entry counts only the new runs
+		tCache.put(4, tPal, createRuns(10));
+		assertEquals(70, tCache.mRuns);
+		// a tile larger than the cache is not kept
+		tCache.put(5, tPal, createRuns(101));
+		assertNull(tCache.get(5, tPal));
+		assertEquals(0, tCache.mRuns);
+	}
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators;
+
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+import osmb.mapsources.TileAddress;
+import osmb.program.map.IfMap;
+import osmb.program.tiles.Tile;
+
+public class TileCacheTest extends TestCase
+{
+	protected static final int ZOOM = 12;
+
+	/**
+	 * @return A cache holding nTiles tiles without image data.
+	 */
+	protected static TileCache createCache(int nTiles)
+	{
+		return new TileCache((long) nTiles * TileCache.DECODED_TILE_BYTES);
+	}
+
+	protected static Tile createTile(int x, int y)
+	{
+		return new Tile(null, x, y, ZOOM);
+	}
+
+	protected static boolean isCached(TileCache tCache, int x, int y)
+	{
+		return tCache.peekTile(null, new TileAddress(x, y, ZOOM)) != null;
+	}
+
+	/**
+	 * @return A map of the tiles [nXMin..nXMax] x [nYMin..nYMax], answering only the methods used by the cache.
+	 */
+	protected static IfMap createMap(int nXMin, int nXMax, int nYMin, int nYMax)
+	{
+		return (IfMap) Proxy.newProxyInstance(IfMap.class.getClassLoader(), new Class<?>[] { IfMap.class }, (tProxy, tMethod, tArgs) -> {
+			switch (tMethod.getName())
+			{
+				case "getXMin":
+					return nXMin;
+				case "getXMax":
+					return nXMax;
+				case "getYMin":
+					return nYMin;
+				case "getYMax":
+					return nYMax;
+				case "getZoom":
+					return ZOOM;
+				case "getMapSource":
+					return null;
+				case "hashCode":
+					return System.identityHashCode(tProxy);
+				case "equals":
+					return tProxy == tArgs[0];
+				default:
+					throw new UnsupportedOperationException(tMethod.getName());
+			}
+		});
+	}
+
+	public void testLookup()
+	{
+		TileCache tCache = createCache(10);
+		Tile tile = createTile(3, 4);
+		tCache.addTile(tile);
+		assertSame(tile, tCache.peekTile(null, new TileAddress(3, 4, ZOOM)));
+		assertEquals(0.0, tCache.getHitRate(), 0.0);
+		assertSame(tile, tCache.getTile(null, new TileAddress(3, 4, ZOOM)));
+		assertNull(tCache.getTile(null, new TileAddress(4, 3, ZOOM)));
+		assertNull(tCache.getTile(null, new TileAddress(3, 4, ZOOM + 1)));
+		assertEquals(1.0 / 3.0, tCache.getHitRate(), 1e-9);
+
+		// a tile added again replaces the cached one and is counted once
+		Tile tile2 = createTile(3, 4);
+		tCache.addTile(tile2);
+		assertSame(tile2, tCache.peekTile(null, new TileAddress(3, 4, ZOOM)));
+		assertEquals(TileCache.DECODED_TILE_BYTES, tCache.getResidentBytes());
+	}
+
+	public void testEviction()
+	{
+		TileCache tCache = createCache(10);
+		for (int x = 0; x < 15; x++)
+			tCache.addTile(createTile(x, 0));
+		assertEquals(5, tCache.getEvictions());
+		assertEquals(10L * TileCache.DECODED_TILE_BYTES, tCache.getResidentBytes());
+		for (int x = 0; x < 15; x++)
+			assertEquals("tile " + x, x >= 5, isCached(tCache, x, 0));
+	}
+
+	/**
+	 * A tile hit again is protected, a scan of tiles used only once does not push it out.
+	 */
+	public void testProtectedSegment()
+	{
+		TileCache tCache = createCache(10);
+		tCache.addTile(createTile(0, 0));
+		tCache.addTile(createTile(1, 0));
+		assertNotNull(tCache.getTile(null, new TileAddress(0, 0, ZOOM)));
+		for (int x = 2; x < 50; x++)
+			tCache.addTile(createTile(x, 0));
+		assertTrue(isCached(tCache, 0, 0));
+		assertFalse(isCached(tCache, 1, 0));
+
+		// the protected segment takes at most 80% of the cache, its least recently used tiles fall back into probation
+		tCache = createCache(10);
+		for (int x = 0; x < 10; x++)
+			tCache.addTile(createTile(x, 0));
+		for (int x = 0; x < 10; x++)
+			assertNotNull(tCache.getTile(null, new TileAddress(x, 0, ZOOM)));
+		tCache.addTile(createTile(10, 0));
+		tCache.addTile(createTile(11, 0));
+		assertFalse(isCached(tCache, 0, 0));
+		assertFalse(isCached(tCache, 1, 0));
+		for (int x = 2; x < 12; x++)
+			assertTrue("tile " + x, isCached(tCache, x, 0));
+	}
+
+	/**
+	 * The tiles of a pending map are dropped only after the other tiles, and like any other tile once the map is removed.
+	 */
+	public void testPendingMaps()
+	{
+		TileCache tCache = createCache(10);
+		IfMap tMap = createMap(62, 65, 0, 0);
+		tCache.addPendingMap(tMap);
+		tCache.addPendingMap(tMap);
+		for (int x = 62; x <= 65; x++)
+			tCache.addTile(createTile(x, 0));
+		for (int x = 0; x < 20; x++)
+			tCache.addTile(createTile(x, 1));
+		for (int x = 62; x <= 65; x++)
+			assertTrue("tile " + x, isCached(tCache, x, 0));
+
+		tCache.removePendingMap(tMap);
+		tCache.removePendingMap(tMap);
+		assertTrue(tCache.mPendingBlocks.isEmpty());
+		for (int x = 20; x < 30; x++)
+			tCache.addTile(createTile(x, 1));
+		for (int x = 62; x <= 65; x++)
+			assertFalse("tile " + x, isCached(tCache, x, 0));
+	}
+
+	/**
+	 * If all tiles are needed by pending maps, the least recently used one is dropped anyway.
+	 */
+	public void testAllPending()
+	{
+		TileCache tCache = createCache(4);
+		tCache.addPendingMap(createMap(0, 99, 0, 0));
+		for (int x = 0; x < 6; x++)
+			tCache.addTile(createTile(x, 0));
+		assertEquals(2, tCache.getEvictions());
+		assertFalse(isCached(tCache, 0, 0));
+		assertFalse(isCached(tCache, 1, 0));
+		assertTrue(isCached(tCache, 5, 0));
+	}
+}
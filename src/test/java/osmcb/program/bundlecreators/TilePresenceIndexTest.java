@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package osmcb.program.bundlecreators;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TilePresenceIndexTest extends TestCase
+{
+	protected Path mDir = null;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		mDir = Files.createTempDirectory("tpi");
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		Path tFile = mDir.resolve("index" + TilePresenceIndex.FILE_EXT);
+		Files.deleteIfExists(tFile);
+		Files.deleteIfExists(mDir);
+	}
+
+	public void testStates()
+	{
+		TilePresenceIndex tIndex = new TilePresenceIndex(null);
+		assertEquals(TilePresenceIndex.UNKNOWN, tIndex.getState(63, 64));
+		tIndex.setPresent(63, 64, true);
+		tIndex.setPresent(64, 64, false);
+		assertEquals(TilePresenceIndex.PRESENT, tIndex.getState(63, 64));
+		assertEquals(TilePresenceIndex.ABSENT, tIndex.getState(64, 64));
+		// the neighbours in the same and in the adjacent blocks stay unknown
+		assertEquals(TilePresenceIndex.UNKNOWN, tIndex.getState(62, 64));
+		assertEquals(TilePresenceIndex.UNKNOWN, tIndex.getState(63, 63));
+		assertEquals(TilePresenceIndex.UNKNOWN, tIndex.getState(65, 64));
+		assertEquals(TilePresenceIndex.UNKNOWN, tIndex.getState(64, 65));
+		// a tile found later clears the absent state
+		tIndex.setPresent(64, 64, true);
+		assertEquals(TilePresenceIndex.PRESENT, tIndex.getState(64, 64));
+		tIndex.setPresent(63, 64, false);
+		assertEquals(TilePresenceIndex.ABSENT, tIndex.getState(63, 64));
+		// large tile coordinates of high zoom levels
+		tIndex.setPresent((1 << 20) - 1, (1 << 20) - 1, true);
+		assertEquals(TilePresenceIndex.PRESENT, tIndex.getState((1 << 20) - 1, (1 << 20) - 1));
+		assertEquals(TilePresenceIndex.UNKNOWN, tIndex.getState((1 << 20) - 1, (1 << 20) - 2));
+	}
+
+	/**
+	 * Only present tiles are saved. Absent tiles are unknown after loading, blocks with absent tiles only are not written at all.
+	 */
+	public void testSaveLoad() throws IOException
+	{
+		Path tFile = mDir.resolve("index" + TilePresenceIndex.FILE_EXT);
+		TilePresenceIndex tIndex = new TilePresenceIndex(tFile);
+		tIndex.load();
+		tIndex.setPresent(1, 2, true);
+		tIndex.setPresent(2, 2, false);
+		tIndex.setPresent(100, 2, true);
+		tIndex.setPresent(1000, 1000, false);
+		tIndex.save();
+		assertTrue(Files.exists(tFile));
+		// magic and block count, then per block its key and two bitmaps of 64 longs
+		assertEquals(8 + 2 * (8 + 2 * 64 * 8), Files.size(tFile));
+
+		TilePresenceIndex tLoaded = new TilePresenceIndex(tFile);
+		tLoaded.load();
+		assertEquals(TilePresenceIndex.PRESENT, tLoaded.getState(1, 2));
+		assertEquals(TilePresenceIndex.PRESENT, tLoaded.getState(100, 2));
+		assertEquals(TilePresenceIndex.UNKNOWN, tLoaded.getState(2, 2));
+		assertEquals(TilePresenceIndex.UNKNOWN, tLoaded.getState(1000, 1000));
+		assertEquals(TilePresenceIndex.UNKNOWN, tLoaded.getState(3, 2));
+
+		// an index not modified since loading is not written again
+		Files.write(tFile, new byte[] { 1, 2, 3 });
+		tLoaded.save();
+		assertEquals(3, Files.size(tFile));
+	}
+
+	public void testDamagedFile() throws IOException
+	{
+		Path tFile = mDir.resolve("index" + TilePresenceIndex.FILE_EXT);
+		TilePresenceIndex tIndex = new TilePresenceIndex(tFile);
+		tIndex.setPresent(5, 5, true);
+		tIndex.save();
+		byte[] tData = Files.readAllBytes(tFile);
+		Files.write(tFile, Arrays.copyOf(tData, tData.length - 100));
+		TilePresenceIndex tLoaded = new TilePresenceIndex(tFile);
+		tLoaded.load();
+		assertEquals(TilePresenceIndex.UNKNOWN, tLoaded.getState(5, 5));
+
+		Files.write(tFile, new byte[] { 'x', 'x', 'x', 'x', 0, 0, 0, 0 });
+		tLoaded = new TilePresenceIndex(tFile);
+		tLoaded.load();
+		assertEquals(TilePresenceIndex.UNKNOWN, tLoaded.getState(5, 5));
+	}
+}
@@ -0,0 +1,84 @@
+package osmcb.utilities.image;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class OSMCB3AdaptivePaletteTest extends TestCase
+{
+	/**
+	 * @return The colors of the palette by their index as listed in the bsb header, index 0 is not listed and left 0.
+	 */
+	protected static int[] getPaletteRGB(IfOSMPalette tPal)
+	{
+		int[] tRGB = new int[tPal.getPalColors()];
+		for (String strLine : tPal.asBSBStr().split("\r\n"))
+		{
+			String[] tVal = strLine.substring(4).split(",");
+			tRGB[Integer.parseInt(tVal[0])] = (Integer.parseInt(tVal[1]) << 16) | (Integer.parseInt(tVal[2]) << 8) | Integer.parseInt(tVal[3]);
+		}
+		return tRGB;
+	}
+
+	/**
+	 * An image with less than 128 colors gets exactly its colors, the standard colors not used are left out.
+	 */
+	public void testCompactPalette()
+	{
+		OSMCB3AdaptivePalette tPal = new OSMCB3AdaptivePalette();
+		int[] tColors = { 0x102030, 0x405060, 0xFFFFFF, 0x0092D9, 0x7080A0 };
+		for (int nC = 0; nC < tColors.length; nC++)
+			tPal.put(new OSMColor(tColors[nC]), 100 * (nC + 1));
+		tPal.finishPalette();
+		assertEquals(tColors.length + 1, tPal.getPalColors());
+		int[] tRGB = getPaletteRGB(tPal);
+		for (int nRGB : tColors)
+		{
+			int nIdx = tPal.getPIdx(nRGB);
+			assertTrue(nIdx >= 1);
+			assertEquals(nRGB, tRGB[nIdx]);
+		}
+		// a color not seen while building the palette is mapped to the nearest palette color
+		int nUnknown = 0x112233;
+		assertEquals(tPal.getPIdx(0x102030), tPal.getPIdx(nUnknown));
+		assertEquals(OSMColor.nearest(nUnknown, tRGB, 1, tRGB.length), tPal.getPIdx(nUnknown));
+	}
+
+	/**
+	 * Many colors are reduced to 128 entries. The most used colors are kept exactly, close colors are merged into the more used one.
+	 */
+	public void testReduce()
+	{
+		OSMCB3AdaptivePalette tPal = new OSMCB3AdaptivePalette();
+		Random tRnd = new Random(4711);
+		int[] tGrid = new int[16 * 16 * 16];
+		int nG = 0;
+		for (int nR = 0; nR < 256; nR += 17)
+			for (int nGr = 0; nGr < 256; nGr += 17)
+				for (int nB = 0; nB < 256; nB += 17)
+					tGrid[nG++] = (nR << 16) | (nGr << 8) | nB;
+		// every 100th grid color is used much more often than the others
+		for (int nE = 0; nE < tGrid.length; nE++)
+			tPal.put(new OSMColor(tGrid[nE]), ((nE % 100) == 50) ? 1000000 + nE : 1 + tRnd.nextInt(10));
+		for (int nE = 50; nE < tGrid.length; nE += 100)
+			tPal.put(new OSMColor(tGrid[nE] ^ 0x000001), 5);
+		tPal.finishPalette();
+
+		assertEquals(128, tPal.getPalColors());
+		int[] tRGB = getPaletteRGB(tPal);
+		for (int nE = 50; nE < tGrid.length; nE += 100)
+		{
+			int nIdx = tPal.getPIdx(tGrid[nE]);
+			assertEquals(tGrid[nE], tRGB[nIdx]);
+			assertEquals(nIdx, tPal.getPIdx(tGrid[nE] ^ 0x000001));
+		}
+		byte[] tIdx = new byte[tGrid.length];
+		tPal.mapRow(tGrid, 0, tGrid.length, tIdx);
+		for (int nE = 0; nE < tGrid.length; nE++)
+		{
+			int nIdx = tPal.getPIdx(tGrid[nE]);
+			assertTrue((nIdx >= 0) && (nIdx < 128));
+			assertEquals(nIdx, tIdx[nE]);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package osmcb.utilities.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class OSMColorHistogramTest extends TestCase
+{
+	public void testAddKeepsOrderAndIgnoresAlpha()
+	{
+		OSMColorHistogram tHist = new OSMColorHistogram(2);
+		assertEquals(0, tHist.add(0xFF102030, 5));
+		assertEquals(1, tHist.add(0x00405060, 1));
+		assertEquals(0, tHist.add(0x80102030, 2));
+		assertEquals(2, tHist.size());
+		assertEquals(0x102030, tHist.getRGB(0) & 0xFFFFFF);
+		assertEquals(7, tHist.getCount(0));
+		assertEquals(1, tHist.getCount(1));
+		assertEquals(-1, tHist.indexOf(0x123456));
+		assertEquals(1, tHist.indexOf(0xFF405060));
+	}
+
+	/**
+	 * Adding more colors than the initial capacity grows the table without losing counts.
+	 */
+	public void testGrow()
+	{
+		OSMColorHistogram tHist = new OSMColorHistogram(4);
+		for (int nC = 0; nC < 100000; nC++)
+			tHist.add(nC * 167, nC + 1);
+		assertEquals(100000, tHist.size());
+		for (int nC = 0; nC < 100000; nC += 997)
+		{
+			assertEquals(nC, tHist.indexOf(nC * 167));
+			assertEquals(nC + 1, tHist.getCount(nC));
+		}
+	}
+
+	public void testAddPixelsCountsRuns()
+	{
+		int[] tPixels = { 1, 1, 1, 2, 2, 1, 3, 0xFF000003 };
+		OSMColorHistogram tHist = new OSMColorHistogram();
+		tHist.addPixels(tPixels, 1, 6);
+		assertEquals(3, tHist.size());
+		assertEquals(3, tHist.getCount(tHist.indexOf(1)));
+		assertEquals(2, tHist.getCount(tHist.indexOf(2)));
+		assertEquals(1, tHist.getCount(tHist.indexOf(3)));
+	}
+
+	public void testMerge()
+	{
+		OSMColorHistogram tA = new OSMColorHistogram();
+		tA.add(1, 10);
+		tA.add(2, 20);
+		OSMColorHistogram tB = new OSMColorHistogram();
+		tB.add(3, 30);
+		tB.add(1, 5);
+		tA.merge(tB);
+		assertEquals(3, tA.size());
+		assertEquals(15, tA.getCount(0));
+		assertEquals(20, tA.getCount(1));
+		assertEquals(3, tA.getRGB(2));
+		assertEquals(30, tA.getCount(2));
+	}
+
+	/**
+	 * Counts beyond 2^31 are kept as long and limited for the int based palettes.
+	 */
+	public void testLongCounts()
+	{
+		OSMColorHistogram tHist = new OSMColorHistogram();
+		tHist.add(7, Integer.MAX_VALUE);
+		tHist.add(7, Integer.MAX_VALUE);
+		assertEquals(2L * Integer.MAX_VALUE, tHist.getCount(0));
+		assertEquals(Integer.MAX_VALUE, tHist.getIntCount(0));
+	}
+
+	public void testWriteRead() throws IOException
+	{
+		OSMColorHistogram tHist = new OSMColorHistogram();
+		tHist.add(0xABCDEF, 3);
+		tHist.add(0x010203, 1L << 40);
+		ByteArrayOutputStream tBytes = new ByteArrayOutputStream();
+		tHist.write(new DataOutputStream(tBytes));
+		OSMColorHistogram tRead = OSMColorHistogram.read(new DataInputStream(new ByteArrayInputStream(tBytes.toByteArray())));
+		assertEquals(2, tRead.size());
+		assertEquals(0xABCDEF, tRead.getRGB(0) & 0xFFFFFF);
+		assertEquals(3, tRead.getCount(0));
+		assertEquals(1L << 40, tRead.getCount(1));
+		assertEquals(1, tRead.indexOf(0x010203));
+	}
+}
@@ -0,0 +1,57 @@
+package osmcb.utilities.image;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class OSMColorTest extends TestCase
+{
+	protected static final double FIXED_ONE = 1 << OSMColor.ODIST_FRACTION_BITS;
+
+	public void testQDiff()
+	{
+		assertEquals(0, OSMColor.qDiff(0xFF123456, 0x00123456));
+		assertEquals(3 * 255 * 255, OSMColor.qDiff(0x000000, 0xFFFFFF));
+		assertEquals(1 + 4 + 9, OSMColor.qDiff(0x102030, 0x112233));
+		assertEquals(new OSMColor(0x405060).qDiff(new OSMColor(0x102030)), OSMColor.qDiff(0x405060, 0x102030));
+	}
+
+	/**
+	 * The fixed-point kernel agrees with the double version of the optical distance, each of its two terms is truncated by less than one unit.
+	 */
+	public void testODist()
+	{
+		Random tRnd = new Random(4711);
+		for (int nT = 0; nT < 100000; nT++)
+		{
+			int nRGB1 = (nT < 16) ? 0 : tRnd.nextInt(0x1000000);
+			int nRGB2 = tRnd.nextInt(0x1000000);
+			double dDist = new OSMColor(nRGB1).oDist(new OSMColor(nRGB2));
+			assertEquals(dDist, OSMColor.oDist(nRGB1, nRGB2) / FIXED_ONE, 2 / FIXED_ONE);
+		}
+		assertEquals(0, OSMColor.oDist(0x808080, 0x808080));
+	}
+
+	/**
+	 * nearest() returns the first palette entry with the least distance within the given range.
+	 */
+	public void testNearest()
+	{
+		Random tRnd = new Random(815);
+		int[] tPal = new int[128];
+		for (int nIdx = 0; nIdx < tPal.length; nIdx++)
+			tPal[nIdx] = tRnd.nextInt(0x1000000);
+		tPal[5] = tPal[9];
+		for (int nT = 0; nT < 10000; nT++)
+		{
+			int nRGB = (nT == 0) ? tPal[9] : tRnd.nextInt(0x1000000);
+			int nBest = 1;
+			for (int nIdx = 2; nIdx < tPal.length; nIdx++)
+				if (OSMColor.oDist(nRGB, tPal[nIdx]) < OSMColor.oDist(nRGB, tPal[nBest]))
+					nBest = nIdx;
+			assertEquals(nBest, OSMColor.nearest(nRGB, tPal, 1, tPal.length));
+		}
+		assertEquals(5, OSMColor.nearest(tPal[9], tPal));
+		assertEquals(3, OSMColor.nearest(0x123456, tPal, 3, 3));
+	}
+}
@@ -0,0 +1,129 @@
+package osmcb.utilities.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class OSMPngPaletteTest extends TestCase
+{
+	protected static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A };
+
+	protected static byte[] writePng(BufferedImage img) throws IOException
+	{
+		ByteArrayOutputStream tOut = new ByteArrayOutputStream();
+		assertTrue(ImageIO.write(img, "png", tOut));
+		return tOut.toByteArray();
+	}
+
+	protected static BufferedImage createIndexed(byte[] tR, byte[] tG, byte[] tB, byte[] tA)
+	{
+		IndexColorModel tCM = (tA == null) ? new IndexColorModel(8, tR.length, tR, tG, tB) : new IndexColorModel(8, tR.length, tR, tG, tB, tA);
+		BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_INDEXED, tCM);
+		for (int nP = 0; nP < 256; nP++)
+			img.getRaster().setSample(nP % 16, nP / 16, 0, nP % tR.length);
+		return img;
+	}
+
+	/**
+	 * Builds a png from single chunks, each given as type followed by its data.
+	 */
+	protected static byte[] buildPng(Object... tChunks) throws IOException
+	{
+		ByteArrayOutputStream tBytes = new ByteArrayOutputStream();
+		DataOutputStream tOut = new DataOutputStream(tBytes);
+		tOut.write(SIGNATURE);
+		for (int nC = 0; nC < tChunks.length; nC += 2)
+		{
+			byte[] tType = ((String) tChunks[nC]).getBytes("US-ASCII");
+			byte[] tData = (byte[]) tChunks[nC + 1];
+			CRC32 tCrc = new CRC32();
+			tCrc.update(tType);
+			tCrc.update(tData);
+			tOut.writeInt(tData.length);
+			tOut.write(tType);
+			tOut.write(tData);
+			tOut.writeInt((int) tCrc.getValue());
+		}
+		return tBytes.toByteArray();
+	}
+
+	protected static byte[] ihdr(int nBitDepth, int nColorType)
+	{
+		return new byte[] { 0, 0, 0, 16, 0, 0, 0, 16, (byte) nBitDepth, (byte) nColorType, 0, 0, 0 };
+	}
+
+	public void testOpaquePalette() throws IOException
+	{
+		byte[] tR = { 0, (byte) 255, 10, 20 };
+		byte[] tG = { 0, (byte) 255, 30, 40 };
+		byte[] tB = { 0, (byte) 255, 50, 60 };
+		int[] tPal = OSMPngPalette.readPalette(writePng(createIndexed(tR, tG, tB, null)));
+		assertNotNull(tPal);
+		assertTrue(tPal.length >= 4);
+		assertEquals(0xFF000000, tPal[0]);
+		assertEquals(0xFFFFFFFF, tPal[1]);
+		assertEquals(0xFF0A1E32, tPal[2]);
+		assertEquals(0xFF14283C, tPal[3]);
+	}
+
+	/**
+	 * A fully transparent entry becomes 0, like a pixel drawn onto a transparent image.
+	 */
+	public void testTransparentEntry() throws IOException
+	{
+		byte[] tR = { 1, 2, 3 };
+		byte[] tA = { 0, (byte) 255, (byte) 255 };
+		int[] tPal = OSMPngPalette.readPalette(writePng(createIndexed(tR, tR, tR, tA)));
+		assertNotNull(tPal);
+		assertEquals(0, tPal[0]);
+		assertEquals(0xFF020202, tPal[1]);
+		assertEquals(0xFF030303, tPal[2]);
+
+		tPal = OSMPngPalette.readPalette(buildPng("IHDR", ihdr(8, 3), "PLTE", new byte[] { 1, 1, 1, 2, 2, 2 }, "tRNS", new byte[] { (byte) 255 }, "IDAT",
+		    new byte[0]));
+		assertTrue(Arrays.equals(new int[] { 0xFF010101, 0xFF020202 }, tPal));
+	}
+
+	public void testUnsupported() throws IOException
+	{
+		byte[] tR = { 1, 2 };
+		assertNull(OSMPngPalette.readPalette(writePng(createIndexed(tR, tR, tR, new byte[] { (byte) 128, (byte) 255 }))));
+		assertNull(OSMPngPalette.readPalette(writePng(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB))));
+		assertNull(OSMPngPalette.readPalette(buildPng("IHDR", ihdr(16, 3), "PLTE", new byte[] { 1, 1, 1 })));
+		assertNull(OSMPngPalette.readPalette(buildPng("IHDR", ihdr(8, 2), "PLTE", new byte[] { 1, 1, 1 })));
+	}
+
+	public void testBadData() throws IOException
+	{
+		assertNull(OSMPngPalette.readPalette(null));
+		assertNull(OSMPngPalette.readPalette(new byte[] { (byte) 0x89, 'P', 'N' }));
+		assertNull(OSMPngPalette.readPalette("GIF89a and some more bytes".getBytes("US-ASCII")));
+		// no palette at all
+		assertNull(OSMPngPalette.readPalette(buildPng("IHDR", ihdr(8, 3), "IDAT", new byte[0])));
+		// short header, palette length not a multiple of 3, transparency before the palette
+		assertNull(OSMPngPalette.readPalette(buildPng("IHDR", new byte[12], "PLTE", new byte[] { 1, 1, 1 })));
+		assertNull(OSMPngPalette.readPalette(buildPng("IHDR", ihdr(8, 3), "PLTE", new byte[] { 1, 1, 1, 2 })));
+		assertNull(OSMPngPalette.readPalette(buildPng("IHDR", ihdr(8, 3), "tRNS", new byte[] { 0 }, "PLTE", new byte[] { 1, 1, 1 })));
+		// palette in front of the header
+		assertNull(OSMPngPalette.readPalette(buildPng("PLTE", new byte[] { 1, 1, 1 }, "IHDR", ihdr(8, 3))));
+
+		// chunk lengths beyond the data or negative
+		byte[] tPng = buildPng("IHDR", ihdr(8, 3), "PLTE", new byte[] { 1, 1, 1, 2, 2, 2 });
+		assertNotNull(OSMPngPalette.readPalette(tPng));
+		assertNull(OSMPngPalette.readPalette(Arrays.copyOf(tPng, tPng.length - 8)));
+		byte[] tBad = tPng.clone();
+		tBad[SIGNATURE.length + 25] = (byte) 0x80;
+		assertNull(OSMPngPalette.readPalette(tBad));
+		tBad = tPng.clone();
+		tBad[SIGNATURE.length + 27] = 0x7F;
+		assertNull(OSMPngPalette.readPalette(tBad));
+	}
+}
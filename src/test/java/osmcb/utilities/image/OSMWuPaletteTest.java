@@ -0,0 +1,77 @@
+package osmcb.utilities.image;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class OSMWuPaletteTest extends TestCase
+{
+	/**
+	 * A few well separated colors each get a box of their own, whose mean is the color itself.
+	 */
+	public void testSeparatedColors()
+	{
+		OSMWuPalette tPal = new OSMWuPalette();
+		int[] tColors = { 0x000000, 0xFFFFFF, 0xF80000, 0x00F800, 0x0000F8, 0x808080 };
+		for (int nC = 0; nC < tColors.length; nC++)
+			tPal.put(new OSMColor(tColors[nC]), 1000 * (nC + 1));
+		tPal.finishPalette();
+		assertTrue(tPal.getPalColors() <= 128);
+		int[] tRGB = OSMCB3AdaptivePaletteTest.getPaletteRGB(tPal);
+		for (int nC = 0; nC < tColors.length; nC++)
+		{
+			int nIdx = tPal.getPIdx(tColors[nC]);
+			assertTrue((nIdx >= 1) && (nIdx < tPal.getPalColors()));
+			assertEquals(tColors[nC], tRGB[nIdx]);
+			for (int nO = 0; nO < nC; nO++)
+				assertTrue(nIdx != tPal.getPIdx(tColors[nO]));
+		}
+	}
+
+	/**
+	 * Random colors are quantized to 127 colors with a small mean error, and each color is mapped to a valid index.
+	 */
+	public void testQuantize()
+	{
+		Random tRnd = new Random(4711);
+		int[] tPixels = new int[100000];
+		OSMColorHistogram tHist = new OSMColorHistogram();
+		for (int nP = 0; nP < tPixels.length; nP++)
+		{
+			tPixels[nP] = 0xFF000000 | tRnd.nextInt(0x1000000);
+			tHist.add(tPixels[nP], 1);
+		}
+		OSMWuPalette tPal = new OSMWuPalette();
+		tPal.addHistogram(tHist);
+		tPal.finishPalette();
+		assertEquals(128, tPal.getPalColors());
+		int[] tRGB = OSMCB3AdaptivePaletteTest.getPaletteRGB(tPal);
+		byte[] tIdx = new byte[tPixels.length];
+		tPal.mapRow(tPixels, 0, tPixels.length, tIdx);
+		long nErr = 0;
+		for (int nP = 0; nP < tPixels.length; nP++)
+		{
+			int nIdx = tIdx[nP];
+			assertTrue((nIdx >= 1) && (nIdx < 128));
+			assertEquals(nIdx, tPal.getPIdx(tPixels[nP]));
+			nErr += OSMColor.qDiff(tPixels[nP], tRGB[nIdx]);
+		}
+		// 127 boxes over the uniformly filled cube have an edge length of about 50, the mean quadratic error within such a box is 3 * 50^2 / 12
+		assertTrue("mean error " + (nErr / tPixels.length), (nErr / tPixels.length) < 1000);
+	}
+
+	public void testAddAfterFinish()
+	{
+		OSMWuPalette tPal = new OSMWuPalette();
+		tPal.put(new OSMColor(0x123456), 1);
+		tPal.finishPalette();
+		try
+		{
+			tPal.put(new OSMColor(0x654321), 1);
+			fail("colors added to a finished palette");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) OSMCB developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package tests;
+
+import java.util.Random;
+
+import osmcb.utilities.image.OSMColor;
+
+/**
+ * This compares {@link OSMColor#oDist(OSMColor)} on OSMColor objects with the static fixed-point kernel {@link OSMColor#nearest(int, int[])} on packed rgb
+ * values. It runs the nearest color search of the palette reduction, i.e. a number of colors each matched against a 127 color palette.
+ * The build has no benchmark harness, so this is a plain main(): each variant is warmed up first, then the best of several timed rounds is reported.
+ * Usage: OSMColorBenchmark [colors] [rounds]
+ */
+public class OSMColorBenchmark
+{
+	private static final int PALETTE_SIZE = 127;
+
+	public static void main(String[] args)
+	{
+		int nColors = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int nRounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		Random tRnd = new Random(4711);
+		int[] tPalRGB = new int[PALETTE_SIZE];
+		OSMColor[] tPalColors = new OSMColor[PALETTE_SIZE];
+		for (int nIdx = 0; nIdx < PALETTE_SIZE; nIdx++)
+		{
+			tPalRGB[nIdx] = tRnd.nextInt(1 << 24);
+			tPalColors[nIdx] = new OSMColor(tPalRGB[nIdx]);
+		}
+		int[] tRGB = new int[nColors];
+		for (int nIdx = 0; nIdx < nColors; nIdx++)
+			tRGB[nIdx] = tRnd.nextInt(1 << 24);
+
+		long nObjNs = Long.MAX_VALUE;
+		long nIntNs = Long.MAX_VALUE;
+		long nCheck = 0;
+		for (int nRound = -3; nRound < nRounds; nRound++)
+		{
+			long nStart = System.nanoTime();
+			nCheck += nearestObj(tRGB, tPalColors);
+			long nObj = System.nanoTime() - nStart;
+
+			nStart = System.nanoTime();
+			nCheck -= nearestInt(tRGB, tPalRGB);
+			long nInt = System.nanoTime() - nStart;
+
+			// the first rounds are for warm up only
+			if (nRound >= 0)
+			{
+				nObjNs = Math.min(nObjNs, nObj);
+				nIntNs = Math.min(nIntNs, nInt);
+			}
+		}
+		long nOps = (long) nColors * PALETTE_SIZE;
+		System.out.printf("oDist(OSMColor) nearest:  %8.2f ns/distance%n", (double) nObjNs / nOps);
+		System.out.printf("nearest(int, int[]):      %8.2f ns/distance, speedup %.1f%n", (double) nIntNs / nOps, (double) nObjNs / nIntNs);
+		// the index sums differ only where the fixed-point rounding picks another of two nearly equidistant colors
+		System.out.println("index sum difference=" + nCheck);
+	}
+
+	private static long nearestObj(int[] tRGB, OSMColor[] tPalColors)
+	{
+		long nSum = 0;
+		for (int nRGB : tRGB)
+		{
+			OSMColor tCol = new OSMColor(nRGB);
+			int nBest = 0;
+			double dBest = 1e100;
+			for (int nIdx = 0; nIdx < tPalColors.length; nIdx++)
+			{
+				double dDist = tCol.oDist(tPalColors[nIdx]);
+				if (dDist < dBest)
+				{
+					dBest = dDist;
+					nBest = nIdx;
+				}
+			}
+			nSum += nBest;
+		}
+		return nSum;
+	}
+
+	private static long nearestInt(int[] tRGB, int[] tPalRGB)
+	{
+		long nSum = 0;
+		for (int nRGB : tRGB)
+			nSum += OSMColor.nearest(nRGB, tPalRGB);
+		return nSum;
+	}
+}